@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Per-app bulkheads, which keep one app from taking all connections away from the others.
+ * Each app may run at most {@code para.mongodb.tenant_max_point_ops} single-object operations and
+ * {@code para.mongodb.tenant_max_bulk_ops} batch operations and scans at once. Both are 0 (unlimited) by default.
+ * Operations over the limit wait in a fair queue for up to {@code para.mongodb.tenant_queue_timeout_ms},
+ * unless {@code para.mongodb.tenant_max_queued} operations are already waiting. Operations which can't be admitted
+ * fail with a {@link RejectedExecutionException}. A timeout of 0 rejects them right away.
+ * <p>
+ * All operations of an app can also be stopped on this node for a short while, with {@link #exclusive(String)},
+ * e.g. while its table is swapped. This works even without limits.
+ */
+public final class MongoDBAdmission {
+
+	private static final Map<String, Bulkhead> BULKHEADS = new ConcurrentHashMap<>();
+	private static final Map<String, ReentrantReadWriteLock> GATES = new ConcurrentHashMap<>();
+	private static final ThreadLocal<Set<String>> HELD = ThreadLocal.withInitial(HashSet::new);
+	private static final Permit NO_PERMIT = () -> { };
+
+	private MongoDBAdmission() { }
+
+	/**
+	 * Returns true if any per-app limit is set.
+	 * @return true if operations are admitted through bulkheads
+	 */
+	public static boolean isEnabled() {
+		return getLimit(false) > 0 || getLimit(true) > 0;
+	}
+
+	/**
+	 * Returns the state of each bulkhead, keyed by {@code "point appid"} or {@code "bulk appid"}. The counters are
+	 * {@code active}, {@code queued}, {@code admitted}, {@code rejected} and {@code wait_ms}, the total time
+	 * spent waiting by admitted operations.
+	 * @return a map of bulkhead name to counters
+	 */
+	public static Map<String, Map<String, Long>> getStats() {
+		Map<String, Map<String, Long>> stats = new TreeMap<>();
+		BULKHEADS.forEach((name, bulkhead) -> stats.put(name, bulkhead.stats()));
+		return stats;
+	}
+
+	/**
+	 * Waits for a permit to run a single-object operation.
+	 * @param appid app identifier
+	 * @return a permit, which must be closed when the operation is done
+	 */
+	static Permit point(String appid) {
+		return acquire(appid, false);
+	}
+
+	/**
+	 * Waits for a permit to run a batch operation or a scan.
+	 * @param appid app identifier
+	 * @return a permit, which must be closed when the operation is done
+	 */
+	static Permit bulk(String appid) {
+		return acquire(appid, true);
+	}
+
+	/**
+	 * Waits for permits to run a batch operation spanning many apps.
+	 * @param appids app identifiers
+	 * @return a permit for all apps, which must be closed when the operation is done
+	 */
+	static Permit bulk(Collection<String> appids) {
+		Deque<Permit> permits = new ArrayDeque<>(appids.size());
+		try {
+			// always acquired in the same order, so that two batches can't wait for each other
+			for (String appid : new TreeSet<>(appids)) {
+				permits.push(bulk(appid));
+			}
+		} catch (RuntimeException e) {
+			permits.forEach(Permit::close);
+			throw e;
+		}
+		return () -> permits.forEach(Permit::close);
+	}
+
+	/**
+	 * Stops all operations of an app on this node. Waits for the running operations to finish, then new ones wait
+	 * until the permit is closed. Operations of the app on other nodes aren't stopped.
+	 * @param appid app identifier
+	 * @return a permit, which must be closed to let the operations of the app run again
+	 */
+	static Permit exclusive(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return NO_PERMIT;
+		}
+		Lock lock = gate(appid).writeLock();
+		lock.lock();
+		return lock::unlock;
+	}
+
+	private static Permit acquire(String appid, boolean bulk) {
+		if (StringUtils.isBlank(appid)) {
+			return NO_PERMIT;
+		}
+		// a nested operation gets the read lock again, even while exclusive() is waiting
+		Lock gate = gate(appid).readLock();
+		gate.lock();
+		int limit = getLimit(bulk);
+		String name = (bulk ? "bulk " : "point ") + appid;
+		Set<String> held = HELD.get();
+		// an operation which is part of another one for the same app, e.g. a retry, is already admitted
+		if (limit <= 0 || held.contains(name)) {
+			return gate::unlock;
+		}
+		Bulkhead bulkhead = BULKHEADS.get(name);
+		if (bulkhead == null || bulkhead.limit != limit) {
+			bulkhead = BULKHEADS.compute(name, (k, v) -> (v == null || v.limit != limit) ? new Bulkhead(limit) : v);
+		}
+		try {
+			bulkhead.acquire(name);
+		} catch (RuntimeException e) {
+			gate.unlock();
+			throw e;
+		}
+		held.add(name);
+		Bulkhead admitted = bulkhead;
+		return () -> {
+			held.remove(name);
+			admitted.semaphore.release();
+			gate.unlock();
+		};
+	}
+
+	private static ReentrantReadWriteLock gate(String appid) {
+		return GATES.computeIfAbsent(appid, k -> new ReentrantReadWriteLock());
+	}
+
+	private static int getLimit(boolean bulk) {
+		return MongoDBUtils.getConfigInt(bulk ? "tenant_max_bulk_ops" : "tenant_max_point_ops", 0);
+	}
+
+	/**
+	 * A permit to run an operation.
+	 */
+	interface Permit extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * A fair semaphore with counters.
+	 */
+	private static final class Bulkhead {
+
+		private final int limit;
+		private final Semaphore semaphore;
+		private final AtomicLong admitted = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+
+		Bulkhead(int limit) {
+			this.limit = limit;
+			this.semaphore = new Semaphore(limit, true);
+		}
+
+		void acquire(String name) {
+			long start = System.nanoTime();
+			try {
+				// unlike tryAcquire(), a zero timeout doesn't jump the queue
+				if (!semaphore.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+					int timeoutMs = MongoDBUtils.getConfigInt("tenant_queue_timeout_ms", 1000);
+					if (timeoutMs <= 0 || semaphore.getQueueLength() >= MongoDBUtils.getConfigInt("tenant_max_queued", 100) ||
+							!semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+						rejected.incrementAndGet();
+						throw new RejectedExecutionException("Too many concurrent operations (" + name + "), limit is " + limit + ".");
+					}
+					waitNanos.addAndGet(System.nanoTime() - start);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			admitted.incrementAndGet();
+		}
+
+		Map<String, Long> stats() {
+			Map<String, Long> stats = new LinkedHashMap<>();
+			stats.put("active", (long) (limit - semaphore.availablePermits()));
+			stats.put("queued", (long) semaphore.getQueueLength());
+			stats.put("admitted", admitted.get());
+			stats.put("rejected", rejected.get());
+			stats.put("wait_ms", TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+			return stats;
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves old objects out of the main table of an app into an archive table, so that the main table, its indexes
+ * and its working set stay small. Objects of a type are archived when neither created nor updated for
+ * {@code para.mongodb.archive_after_days = "type1:days, appid/type2:days"}. The archive table has no secondary
+ * indexes and uses the {@code para.mongodb.archive_block_compressor} (default {@code zstd}).
+ * <p>
+ * Reads which miss the main table fall back to the archive. With {@code para.mongodb.archive_promote_on_read = true},
+ * objects read from the archive are moved back to the main table in the background. Updates and deletes find
+ * archived objects too, and creating or deleting an object always deletes its archived copy. Filtered updates and
+ * deletes are applied to both tables. Archived objects don't appear in {@code readPage()}, but they are still
+ * included in materialized counts.
+ */
+public final class MongoDBArchive {
+
+	/**
+	 * Time when an object was moved back from the archive, so that it isn't archived again right away.
+	 */
+	static final String PROMOTED_AT = "_promotedAt";
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBArchive.class);
+	private static final String ID = "_id";
+	private static final String ARCHIVE_SUFFIX = ".archive";
+	private static final String POLICY = "archive_after_days";
+	private static final AtomicBoolean STARTED = new AtomicBoolean();
+	private static final long MISSING_RECHECK_MS = TimeUnit.MINUTES.toMillis(1);
+	private static final Set<String> EXISTING = ConcurrentHashMap.newKeySet();
+	private static final Map<String, Long> MISSING = new ConcurrentHashMap<>();
+
+	private MongoDBArchive() { }
+
+	/**
+	 * Returns true if an archive policy is set for any type.
+	 * @return true if archiving is enabled
+	 */
+	public static boolean isEnabled() {
+		return !StringUtils.isBlank(MongoDBUtils.getConfigParam(POLICY, ""));
+	}
+
+	/**
+	 * Returns true if the archive of an app may hold objects, i.e. if the app has an archive policy for any type
+	 * or if its archive table exists. Reads, writes and deletes only look for archived copies when it does.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if the archive has to be searched
+	 */
+	static boolean isUsed(String appid) {
+		return isUsed(appid, (String) null);
+	}
+
+	/**
+	 * Returns true if the archive of an app may hold objects of a type, i.e. if the app has an archive policy for
+	 * that type or if its archive table exists.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the object type, or null for objects of any type
+	 * @return true if the archive has to be searched
+	 */
+	static boolean isUsed(String appid, String type) {
+		if (!isEnabled() || StringUtils.isBlank(appid)) {
+			return false;
+		}
+		boolean policy = (type == null) ? MongoDBUtils.getTypePolicyTypes(POLICY, appid).stream().
+				anyMatch(t -> getArchiveAfterDays(appid, t) > 0) : getArchiveAfterDays(appid, type) > 0;
+		return policy || exists(appid);
+	}
+
+	/**
+	 * Returns true if the archive of an app may hold objects of any of the given types.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param types object types
+	 * @return true if the archive has to be searched
+	 */
+	static boolean isUsed(String appid, Collection<String> types) {
+		return types.stream().distinct().anyMatch(type -> isUsed(appid, type));
+	}
+
+	/**
+	 * Returns true if objects read from the archive are moved back to the main table.
+	 * @return the value of {@code para.mongodb.archive_promote_on_read}
+	 */
+	public static boolean isPromoteOnRead() {
+		return MongoDBUtils.getConfigBoolean("archive_promote_on_read", false);
+	}
+
+	/**
+	 * Returns the age after which objects of a type are archived.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the object type
+	 * @return the age in days, or 0 if objects of that type are never archived
+	 */
+	public static long getArchiveAfterDays(String appid, String type) {
+		return NumberUtils.toLong(MongoDBUtils.getTypePolicy(POLICY, appid, type), 0);
+	}
+
+	/**
+	 * Starts the background mover, which archives the objects of all apps every
+	 * {@code para.mongodb.archive_interval_min} minutes (default 60).
+	 */
+	public static void start() {
+		int intervalMin = MongoDBUtils.getConfigInt("archive_interval_min", 60);
+		if (!isEnabled() || intervalMin <= 0 || !STARTED.compareAndSet(false, true)) {
+			return;
+		}
+		Thread.ofPlatform().daemon().name("para-mongodb-archiver").start(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					MongoDBMigrations.pause(TimeUnit.MINUTES.toMillis(intervalMin));
+					for (String appid : MongoDBBootstrap.getAppIdentifiers()) {
+						archive(appid);
+					}
+				} catch (IllegalStateException e) {
+					if (Thread.currentThread().isInterrupted()) {
+						return;
+					}
+					logger.error("Archiving failed: {}", e.getMessage());
+				} catch (Exception e) {
+					logger.error("Archiving failed: {}", e.getMessage());
+				}
+			}
+		});
+		logger.info("Archiving objects every {} minutes.", intervalMin);
+	}
+
+	/**
+	 * Moves the objects of an app which are older than their archive policy to the archive table.
+	 * Objects are moved in batches of {@code para.mongodb.migration_batch_size}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the number of objects archived
+	 */
+	public static long archive(String appid) {
+		if (StringUtils.isBlank(appid) || !isEnabled()) {
+			return 0;
+		}
+		long archived = 0;
+		for (String type : MongoDBUtils.getTypePolicyTypes(POLICY, appid)) {
+			long days = getArchiveAfterDays(appid, type);
+			if (days > 0) {
+				archived += archive(appid, type, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+			}
+		}
+		if (archived > 0) {
+			logger.info("Archived {} objects of app '{}'.", archived, appid);
+		}
+		return archived;
+	}
+
+	private static long archive(String appid, String type, long cutoff) {
+		// objects with a TTL are left to expire, the archive has no TTL index
+		Bson old = Filters.and(Filters.eq(Config._APPID, appid), Filters.eq(Config._TYPE, type),
+				Filters.lt(Config._TIMESTAMP, cutoff), Filters.not(Filters.gte(Config._UPDATED, cutoff)),
+				Filters.not(Filters.gte(PROMOTED_AT, cutoff)), Filters.exists(MongoDBUtils.EXPIRES_AT, false));
+		int batchSize = Math.max(1, MongoDBUtils.getConfigInt("migration_batch_size", 500));
+		long archived = 0;
+		List<Document> docs = new ArrayList<>(batchSize);
+		// a single pass over the table, querying for old objects again would start over from the beginning each time
+		try (MongoCursor<Document> cursor = MongoDBUtils.getTable(appid).find(old).batchSize(batchSize).cursor()) {
+			while (cursor.hasNext()) {
+				docs.add(cursor.next());
+				if (docs.size() >= batchSize || !cursor.hasNext()) {
+					archived += move(appid, docs, old);
+					docs.clear();
+					MongoDBMigrations.pause();
+				}
+			}
+		}
+		return archived;
+	}
+
+	/**
+	 * Copies a batch of objects to the archive, then deletes them from the main table. Objects which were updated
+	 * or deleted since they were read no longer match, and their copies are removed again.
+	 * @return the number of objects moved
+	 */
+	private static long move(String appid, List<Document> docs, Bson old) {
+		MongoCollection<Document> table = MongoDBUtils.getTable(appid);
+		String cluster = MongoDBRouting.getProfile(appid);
+		MongoCollection<Document> archive = getOrCreateTable(appid, cluster);
+		copy(cluster, docs, archive);
+		List<Object> ids = docs.stream().map(doc -> doc.get(ID)).toList();
+		// an object deleted before it was copied must not come back from the archive
+		Set<Object> present = findIds(cluster, appid, table, ids);
+		List<Object> stale = new ArrayList<>(ids.stream().filter(id -> !present.contains(id)).toList());
+		long moved = 0;
+		if (!present.isEmpty()) {
+			List<Object> copied = new ArrayList<>(present);
+			moved = MongoDBResilience.execute(cluster, () ->
+					table.deleteMany(Filters.and(old, Filters.in(ID, copied)))).getDeletedCount();
+			if (moved < copied.size()) {
+				// updated since they were read, the main table has the newer version (deleted ones lost their copy)
+				stale.addAll(findIds(cluster, appid, table, copied));
+			}
+		}
+		if (!stale.isEmpty()) {
+			MongoDBResilience.execute(cluster, () -> archive.deleteMany(Filters.in(ID, stale)));
+		}
+		MongoDBReadCoalescer.invalidateAll(appid);
+		return moved;
+	}
+
+	private static Set<Object> findIds(String cluster, String appid, MongoCollection<Document> table, List<Object> ids) {
+		Bson filter = Filters.and(Filters.eq(Config._APPID, appid), Filters.in(ID, ids));
+		return MongoDBResilience.execute(cluster, () -> table.find(filter).projection(new Document(ID, 1)).
+				map(doc -> doc.get(ID)).into(new HashSet<>()));
+	}
+
+	/**
+	 * Moves archived objects back to the main table. Objects which are in the main table already are newer than
+	 * their archived copies, so those copies are only deleted.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param filter selects the objects in the archive
+	 * @return the ids of the objects moved
+	 */
+	static Set<String> promote(String appid, Bson filter) {
+		MongoCollection<Document> archive = getTable(appid);
+		MongoCollection<Document> table = MongoDBUtils.getTable(appid);
+		String cluster = MongoDBRouting.getProfile(appid);
+		List<Document> docs = MongoDBResilience.execute(cluster, () -> archive.find(filter).into(new ArrayList<>()));
+		Set<String> promoted = new LinkedHashSet<>(docs.size());
+		if (docs.isEmpty()) {
+			return promoted;
+		}
+		long now = System.currentTimeMillis();
+		docs.forEach(doc -> doc.put(PROMOTED_AT, now));
+		// inserts, unlike upserts, fail for ids which are in the main table
+		List<WriteModel<Document>> inserts = docs.stream().<WriteModel<Document>>map(InsertOneModel::new).toList();
+		Set<Integer> present = new HashSet<>();
+		try {
+			MongoDBResilience.execute(cluster, () -> table.bulkWrite(inserts, new BulkWriteOptions().ordered(false)));
+		} catch (MongoBulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				if (MongoDBBulkResult.classify(error.getCode()) != MongoDBBulkResult.Failure.DUPLICATE_KEY) {
+					throw e;
+				}
+				present.add(error.getIndex());
+			}
+		}
+		for (int i = 0; i < docs.size(); i++) {
+			// a retried insert may fail for an object moved by the first attempt
+			if (!present.contains(i) || isPromotedAt(cluster, table, docs.get(i), now)) {
+				promoted.add(MongoDBUtils.fromStoredId(docs.get(i).get(ID)));
+			}
+		}
+		List<Object> ids = docs.stream().map(d -> d.get(ID)).toList();
+		MongoDBResilience.execute(cluster, () -> archive.deleteMany(Filters.in(ID, ids)));
+		return promoted;
+	}
+
+	private static boolean isPromotedAt(String cluster, MongoCollection<Document> table, Document doc, long time) {
+		return MongoDBResilience.execute(cluster, () -> table.countDocuments(Filters.and(idFilter(doc), Filters.eq(PROMOTED_AT, time)))) > 0;
+	}
+
+	/**
+	 * Moves archived objects back to the main table in the background.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param filter selects the objects in the archive
+	 */
+	static void promoteLater(String appid, Bson filter) {
+		MongoDBExecutors.invokeLater(MongoDBRouting.getProfile(appid), () -> {
+			try {
+				promote(appid, filter);
+			} catch (Exception e) {
+				logger.warn("Failed to move objects of app '{}' back from the archive: {}", appid, e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Returns the archive table of an app. The table is only created when objects are archived, reads from a
+	 * table which doesn't exist find nothing.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the archive table
+	 */
+	static MongoCollection<Document> getTable(String appid) {
+		return MongoDBUtils.getClient(appid).getCollection(getTableName(appid));
+	}
+
+	/**
+	 * Returns the archive table of an app in a connection profile, creating it if it doesn't exist.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param profile a connection profile
+	 * @return the archive table
+	 */
+	static MongoCollection<Document> getOrCreateTable(String appid, String profile) {
+		MongoDatabase db = MongoDBRouting.getDatabase(profile);
+		String name = getTableName(appid);
+		if (!EXISTING.contains(profile + "/" + name)) {
+			createTable(db, name);
+			EXISTING.add(profile + "/" + name);
+			MISSING.remove(profile + "/" + name);
+		}
+		return db.getCollection(name);
+	}
+
+	/**
+	 * Checks if the archive table of an app exists. Tables found are remembered, tables not found are looked
+	 * for again after a minute, in case another node has created them since.
+	 */
+	private static boolean exists(String appid) {
+		String profile = MongoDBRouting.getProfile(appid);
+		String name = getTableName(appid);
+		String key = profile + "/" + name;
+		if (EXISTING.contains(key)) {
+			return true;
+		}
+		Long checked = MISSING.get(key);
+		long now = System.currentTimeMillis();
+		if (checked != null && now - checked < MISSING_RECHECK_MS) {
+			return false;
+		}
+		if (MongoDBUtils.existsTable(MongoDBRouting.getDatabase(profile), name)) {
+			EXISTING.add(key);
+			MISSING.remove(key);
+			return true;
+		}
+		MISSING.put(key, now);
+		return false;
+	}
+
+	/**
+	 * Returns the name of the archive table of an app.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a collection name
+	 */
+	static String getTableName(String appid) {
+		return MongoDBUtils.getTableNameForAppid(appid) + ARCHIVE_SUFFIX;
+	}
+
+	/**
+	 * Drops the archive table of an app.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 */
+	static void dropTable(String appid) {
+		if (!StringUtils.isBlank(appid)) {
+			String profile = MongoDBRouting.getProfile(appid);
+			String name = getTableName(appid);
+			MongoDBRouting.getDatabase(profile).getCollection(name).drop();
+			EXISTING.remove(profile + "/" + name);
+			MISSING.remove(profile + "/" + name);
+		}
+	}
+
+	private static void createTable(MongoDatabase db, String name) {
+		if (MongoDBUtils.existsTable(db, name)) {
+			return;
+		}
+		String compressor = MongoDBUtils.getConfigParam("archive_block_compressor", "zstd");
+		CreateCollectionOptions options = new CreateCollectionOptions().storageEngineOptions(
+				new Document("wiredTiger", new Document("configString", "block_compressor=" + compressor)));
+		try {
+			db.createCollection(name, options);
+		} catch (Exception e) {
+			// created concurrently by another node, or the storage engine isn't WiredTiger
+			logger.debug("Failed to create archive table '{}': {}", name, e.getMessage());
+		}
+	}
+
+	private static void copy(String cluster, List<Document> docs, MongoCollection<Document> to) {
+		List<WriteModel<Document>> writes = new ArrayList<>(docs.size());
+		for (Document doc : docs) {
+			writes.add(new ReplaceOneModel<>(idFilter(doc), doc, new ReplaceOptions().upsert(true)));
+		}
+		MongoDBResilience.execute(cluster, () -> to.bulkWrite(writes));
+	}
+
+	private static Bson idFilter(Document doc) {
+		return MongoDBUtils.isAppidInShardKey() ?
+				Filters.and(Filters.eq(Config._APPID, doc.get(Config._APPID)), Filters.eq(ID, doc.get(ID))) : Filters.eq(ID, doc.get(ID));
+	}
+}
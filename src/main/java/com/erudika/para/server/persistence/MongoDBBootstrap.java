@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.App;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.Utils;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects to MongoDB in the background when Para starts, so that the first requests don't have to.
+ * The bootstrap creates the client, opens {@code para.mongodb.bootstrap_warm_connections} connections,
+ * then makes sure the tables of the root app and all other apps exist, in parallel. Indexes are only created on
+ * existing tables with {@code para.mongodb.bootstrap_create_indexes = true}. Enabled by default, disable with
+ * {@code para.mongodb.bootstrap_enabled = false}. Requests which arrive before the client is ready wait for it,
+ * they don't create a client of their own.
+ */
+public final class MongoDBBootstrap {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBBootstrap.class);
+	private static final AtomicReference<CompletableFuture<Void>> READY = new AtomicReference<>();
+
+	/**
+	 * Bootstrap state.
+	 */
+	public enum State {
+		/**
+		 * Not started yet.
+		 */
+		NOT_STARTED,
+		/**
+		 * Connecting and checking tables.
+		 */
+		STARTING,
+		/**
+		 * Finished successfully.
+		 */
+		READY,
+		/**
+		 * Failed - the DAO still works, tables and connections are set up on first use instead.
+		 */
+		FAILED
+	}
+
+	private MongoDBBootstrap() { }
+
+	/**
+	 * Returns true if the bootstrap runs when Para is initialized.
+	 * @return the value of {@code para.mongodb.bootstrap_enabled}
+	 */
+	public static boolean isEnabled() {
+		return MongoDBUtils.getConfigBoolean("bootstrap_enabled", true);
+	}
+
+	/**
+	 * Returns true if the bootstrap creates missing indexes on existing tables. Off by default, because an upgrade
+	 * which adds an index would otherwise build it on every table at startup.
+	 * @return the value of {@code para.mongodb.bootstrap_create_indexes}
+	 */
+	public static boolean isCreateIndexesEnabled() {
+		return MongoDBUtils.getConfigBoolean("bootstrap_create_indexes", false);
+	}
+
+	/**
+	 * Starts the bootstrap in the background, unless it's already started.
+	 * @return a future which completes when the bootstrap is done
+	 */
+	public static CompletableFuture<Void> start() {
+		CompletableFuture<Void> ready = new CompletableFuture<>();
+		if (!READY.compareAndSet(null, ready)) {
+			return READY.get();
+		}
+		MongoDBExecutors.supplyAsync(() -> {
+			try {
+				run();
+				ready.complete(null);
+			} catch (Exception e) {
+				logger.error("MongoDB bootstrap failed: {}", e.getMessage());
+				ready.completeExceptionally(e);
+			}
+			return null;
+		});
+		return ready;
+	}
+
+	/**
+	 * Returns the current state of the bootstrap.
+	 * @return the state
+	 */
+	public static State getState() {
+		CompletableFuture<Void> ready = READY.get();
+		if (ready == null) {
+			return State.NOT_STARTED;
+		} else if (!ready.isDone()) {
+			return State.STARTING;
+		}
+		return ready.isCompletedExceptionally() ? State.FAILED : State.READY;
+	}
+
+	/**
+	 * Waits for the bootstrap to finish, e.g. in a readiness check.
+	 * @param timeoutMs max. time to wait, in milliseconds
+	 * @return true if the bootstrap finished successfully
+	 */
+	public static boolean awaitReady(long timeoutMs) {
+		CompletableFuture<Void> ready = READY.get();
+		if (ready == null) {
+			return false;
+		}
+		try {
+			ready.get(timeoutMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException e) {
+			return false;
+		}
+	}
+
+	private static void run() {
+		long start = System.currentTimeMillis();
+		// creates the client and the root table
+		MongoDBUtils.getClient();
+		warmUp(Math.min(MongoDBUtils.getConfigInt("bootstrap_warm_connections", 10), MongoDBUtils.getConnectionPoolSize(MongoDBRouting.DEFAULT_PROFILE)));
+
+		List<String> appids = new ArrayList<>(getAppIdentifiers());
+		// apps routed to other profiles have their tables in other databases
+		Map<String, Set<String>> existing = new HashMap<>();
+		for (String appid : appids) {
+			existing.computeIfAbsent(MongoDBRouting.getProfile(appid),
+					profile -> MongoDBRouting.getDatabase(profile).listCollectionNames().into(new HashSet<>()));
+		}
+		MongoDBExecutors.invokeAll(appids, MongoDBRouting::getProfile, appid -> {
+			if (existing.getOrDefault(MongoDBRouting.getProfile(appid), Collections.emptySet()).contains(MongoDBUtils.getTableNameForAppid(appid))) {
+				if (isCreateIndexesEnabled()) {
+					// creating an index which already exists is a no-op
+					MongoDBUtils.createIndexes(appid);
+				}
+				if (MongoDBUtils.isClusteredTablesEnabled() && !MongoDBUtils.isClusteredTable(appid)) {
+					logger.info("Table '{}' isn't a clustered collection yet, it can be converted with "
+							+ "MongoDBMigrations.migrateToClusteredTable().", MongoDBUtils.getTableNameForAppid(appid));
+				}
+				if (MongoDBKeyFilter.isEnabled()) {
+					MongoDBExecutors.invokeLater(MongoDBRouting.getProfile(appid), () -> MongoDBKeyFilter.build(appid));
+				}
+			} else {
+				MongoDBUtils.createTable(appid);
+			}
+			return null;
+		});
+		logger.info("MongoDB bootstrap finished in {}ms, {} tables checked.", System.currentTimeMillis() - start, appids.size());
+	}
+
+	private static void warmUp(int connections) {
+		if (connections <= 1) {
+			return;
+		}
+		// concurrent pings make the driver open that many connections
+		MongoDBExecutors.invokeAll(MongoDBRouting.DEFAULT_PROFILE, Collections.nCopies(connections, 1), i ->
+				MongoDBUtils.getClient().runCommand(new Document("ping", 1)));
+	}
+
+	/**
+	 * Returns the root app and all apps with a table of their own.
+	 * @return app identifiers
+	 */
+	static Set<String> getAppIdentifiers() {
+		Set<String> appids = new LinkedHashSet<>();
+		appids.add(Para.getConfig().getRootAppIdentifier());
+		// apps are stored in the root table, apps sharing that table don't have one of their own
+		MongoDBUtils.getTable(Para.getConfig().getRootAppIdentifier()).
+				find(Filters.eq(Config._TYPE, Utils.type(App.class))).
+				projection(Projections.include("sharingTable")).
+				forEach(doc -> {
+					String appid = App.identifier(doc.getString("_id"));
+					if (!StringUtils.isBlank(appid) && !"true".equals(String.valueOf(doc.get("sharingTable")))) {
+						appids.add(appid);
+					}
+				});
+		return appids;
+	}
+}
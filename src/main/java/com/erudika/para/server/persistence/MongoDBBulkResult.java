@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of each object in a bulk write, returned by {@link MongoDBDAO#tryCreateAll(String, java.util.List)}
+ * and {@link MongoDBDAO#tryUpdateAll(String, java.util.List)}. Objects which failed with a transient error
+ * were already retried, so only the objects listed in {@link #getFailed()} need to be sent again, if any.
+ */
+public final class MongoDBBulkResult {
+
+	/**
+	 * Why an object wasn't written.
+	 */
+	public enum Failure {
+		/**
+		 * A transient error (network, election, write concern) which persisted after all retries.
+		 * The object can be sent again later.
+		 */
+		RETRYABLE,
+		/**
+		 * The object violates a unique index.
+		 */
+		DUPLICATE_KEY,
+		/**
+		 * The object was rejected by document validation or is malformed, e.g. too large.
+		 */
+		VALIDATION,
+		/**
+		 * Any other error.
+		 */
+		OTHER
+	}
+
+	// server error codes, see https://www.mongodb.com/docs/manual/reference/error-codes/
+	private static final int DUPLICATE_KEY_ERROR = 11000;
+	private static final Set<Integer> VALIDATION_ERRORS = Set.of(2, 10334, 17419, 52, 55, 56, 57, 121, 14);
+	private static final Set<Integer> RETRYABLE_ERRORS = Set.of(6, 7, 50, 64, 89, 91, 100, 112, 189, 262, 9001, 10107, 11600,
+			11602, 13435, 13436);
+
+	private final List<String> succeeded = new ArrayList<>();
+	private final Map<String, Failure> failed = new LinkedHashMap<>();
+	private final Map<String, String> messages = new LinkedHashMap<>();
+	private RuntimeException error;
+	private long matched;
+
+	MongoDBBulkResult() { }
+
+	/**
+	 * Returns the ids of the objects which were written.
+	 * @return a list of ids
+	 */
+	public List<String> getSucceeded() {
+		return Collections.unmodifiableList(succeeded);
+	}
+
+	/**
+	 * Returns the objects which weren't written.
+	 * @return a map of object id to the kind of failure
+	 */
+	public Map<String, Failure> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	/**
+	 * Returns the objects which weren't written because of a given kind of failure.
+	 * @param failure the kind of failure
+	 * @return a list of ids
+	 */
+	public List<String> getFailed(Failure failure) {
+		return failed.entrySet().stream().filter(e -> e.getValue() == failure).map(Map.Entry::getKey).toList();
+	}
+
+	/**
+	 * Returns the error message for an object which wasn't written.
+	 * @param id object id
+	 * @return the message or null
+	 */
+	public String getMessage(String id) {
+		return messages.get(id);
+	}
+
+	/**
+	 * Returns true if all objects were written.
+	 * @return true if nothing failed
+	 */
+	public boolean isSuccess() {
+		return failed.isEmpty();
+	}
+
+	/**
+	 * Returns the last error, if any object failed.
+	 * @return an exception or null
+	 */
+	RuntimeException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the number of documents matched by update operations.
+	 * @return the matched count
+	 */
+	long getMatchedCount() {
+		return matched;
+	}
+
+	void addMatched(long count) {
+		matched += count;
+	}
+
+	void succeeded(String id) {
+		succeeded.add(id);
+	}
+
+	void failed(String id, Failure failure, String message, RuntimeException cause) {
+		failed.put(id, failure);
+		messages.put(id, message);
+		error = cause;
+	}
+
+	/**
+	 * Classifies a write error returned by the server.
+	 * @param code error code
+	 * @return the kind of failure
+	 */
+	static Failure classify(int code) {
+		if (code == DUPLICATE_KEY_ERROR) {
+			return Failure.DUPLICATE_KEY;
+		} else if (VALIDATION_ERRORS.contains(code)) {
+			return Failure.VALIDATION;
+		} else if (RETRYABLE_ERRORS.contains(code)) {
+			return Failure.RETRYABLE;
+		}
+		return Failure.OTHER;
+	}
+
+	@Override
+	public String toString() {
+		return "succeeded: " + succeeded.size() + ", failed: " + failed;
+	}
+}
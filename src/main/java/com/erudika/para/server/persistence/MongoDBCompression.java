@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BsonBinarySubType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+
+/**
+ * Transparent compression of large nested maps, e.g. the {@code properties} of a {@code Sysprop}.
+ * Compression is enabled per type with {@code para.mongodb.compression = "type:minBytes, appid/type:minBytes"}.
+ * Maps larger than {@code minBytes} (BSON encoded) are stored as binary data and inflated when read.
+ * A compressed value starts with a magic prefix and a format byte, so that other user-defined binary data,
+ * e.g. written by another application, is returned as it is.
+ * Top-level fields are never compressed, so they can still be queried and indexed.
+ */
+final class MongoDBCompression {
+
+	/**
+	 * The first bytes of a compressed value. 0xFF never occurs in UTF-8, so text stored as binary data doesn't
+	 * start with it.
+	 */
+	private static final byte[] MAGIC = {(byte) 0xFF, 'P', 'Z'};
+	/**
+	 * The byte after the magic prefix, identifying the compression format.
+	 */
+	private static final byte FORMAT_DEFLATE = 1;
+	private static final int HEADER_SIZE = MAGIC.length + 1;
+	private static final int BUFFER_SIZE = 4096;
+	private static final DocumentCodec CODEC = new DocumentCodec();
+
+	private MongoDBCompression() { }
+
+	/**
+	 * Returns the minimum size of a map in bytes, above which it gets compressed.
+	 * @param appid an app identifier
+	 * @param type the object type
+	 * @return the threshold or -1 if compression is disabled for this type
+	 */
+	static int getThreshold(String appid, String type) {
+		return NumberUtils.toInt(MongoDBUtils.getTypePolicy("compression", appid, type), -1);
+	}
+
+	/**
+	 * Compresses a field value, if it is large enough.
+	 * @param field the field name
+	 * @param value a map, already sanitized
+	 * @param threshold minimum size in bytes
+	 * @return the compressed value or the original map
+	 */
+	static Object compress(String field, Map<String, Object> value, int threshold) {
+		if (threshold < 0 || value == null || value.isEmpty() || isExcluded(field)) {
+			return value;
+		}
+		ByteBuffer bson = new RawBsonDocument(new Document(value), CODEC).getByteBuffer().asNIO();
+		if (bson.remaining() < threshold) {
+			return value;
+		}
+		byte[] input = new byte[bson.remaining()];
+		bson.get(input);
+		Deflater deflater = new Deflater(MongoDBUtils.getConfigInt("compression_level", Deflater.BEST_SPEED));
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+			out.write(MAGIC, 0, MAGIC.length);
+			out.write(FORMAT_DEFLATE);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			// store it compressed only if that actually saves space
+			return (out.size() < input.length) ? new Binary(BsonBinarySubType.USER_DEFINED, out.toByteArray()) : value;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Checks if a value was compressed by {@link #compress(java.lang.String, java.util.Map, int)}.
+	 * @param value a value read from the database
+	 * @return true if the value must be decompressed
+	 */
+	static boolean isCompressed(Object value) {
+		if (value instanceof Binary) {
+			Binary bin = (Binary) value;
+			byte[] data = bin.getData();
+			return bin.getType() == BsonBinarySubType.USER_DEFINED.getValue() && data.length > HEADER_SIZE &&
+					Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length) && data[MAGIC.length] == FORMAT_DEFLATE;
+		}
+		return false;
+	}
+
+	/**
+	 * Inflates a compressed value.
+	 * @param value a compressed value
+	 * @return the original map, still sanitized
+	 * @throws IllegalArgumentException if the value wasn't compressed by this class
+	 */
+	static Document decompress(Object value) {
+		if (!isCompressed(value)) {
+			throw new IllegalArgumentException("Value is not compressed.");
+		}
+		byte[] data = ((Binary) value).getData();
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalStateException("Compressed value is truncated.");
+				}
+				out.write(buffer, 0, n);
+			}
+			return new RawBsonDocument(out.toByteArray()).decode(CODEC);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Failed to decompress value.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Returns true if a map field may be stored compressed for any type of an app.
+	 * @param appid an app identifier
+	 * @param field the field name
+	 * @return true if compression is enabled for some type and the field isn't excluded
+	 */
+	static boolean mayCompress(String appid, String field) {
+		return !MongoDBUtils.getTypePolicyTypes("compression", appid).isEmpty() && !isExcluded(field);
+	}
+
+	private static boolean isExcluded(String field) {
+		String excluded = MongoDBUtils.getConfigParam("compression_excluded_fields", "");
+		return !StringUtils.isBlank(excluded) && Arrays.asList(StringUtils.split(excluded, ", ")).contains(field);
+	}
+}
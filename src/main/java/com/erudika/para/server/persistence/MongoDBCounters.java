@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import static com.erudika.para.server.persistence.MongoDBUtils.getClient;
+import static com.erudika.para.server.persistence.MongoDBUtils.getTable;
+import static com.erudika.para.server.persistence.MongoDBUtils.getTableNameForAppid;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-type object counts for MongoDB tables.
+ * By default, counts are computed on the server: {@link #countByType(String, String)} counts the entries of the index
+ * on the {@code type} field, {@link #countAllTypes(String)} groups the whole table. The index is never built here -
+ * tables created before it was added need {@link MongoDBUtils#createIndexes(String)}, or they are counted with a
+ * collection scan.
+ * When {@code para.mongodb.materialized_counts_enabled = true}, counts are read from a small
+ * counters collection ({@code [table].counters}) which is kept up to date by {@link MongoDBDAO}.
+ * Materialized counts include archived objects, computed counts don't. Types with a TTL (see
+ * {@link MongoDBUtils#getTTL(String, String)}) are always computed, because the server deletes expired objects
+ * without the DAO, so their counters would only ever grow.
+ */
+public final class MongoDBCounters {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBCounters.class);
+	private static final String ID = "_id";
+	private static final String COUNT = "count";
+	private static final String COUNTERS_SUFFIX = ".counters";
+
+	private MongoDBCounters() { }
+
+	/**
+	 * Returns true if materialized per-type counters are enabled.
+	 * @return true if the DAO keeps the counters collection up to date
+	 */
+	public static boolean isMaterialized() {
+		return MongoDBUtils.getConfigBoolean("materialized_counts_enabled", false);
+	}
+
+	/**
+	 * Counts the objects of a given type.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the object type
+	 * @return the number of objects of that type or -1 on error
+	 */
+	public static long countByType(String appid, String type) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(type)) {
+			return -1;
+		}
+		try {
+			if (isMaterialized() && isCounted(appid, type)) {
+				Document counter = getCountersTable(appid).find(Filters.eq(ID, type)).first();
+				return (counter == null) ? 0 : counter.get(COUNT, Number.class).longValue();
+			}
+			return getTable(appid).countDocuments(Filters.eq(Config._TYPE, type));
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the objects of each type in a table.
+	 * Without materialized counters this is a {@code $group} aggregation which scans the whole table,
+	 * so it should be used sparingly on big tables.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a map of type to count
+	 */
+	public static Map<String, Long> countAllTypes(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return Collections.emptyMap();
+		}
+		Map<String, Long> counts = new LinkedHashMap<>();
+		try {
+			Iterable<Document> results;
+			if (isMaterialized()) {
+				results = getCountersTable(appid).find();
+			} else {
+				results = aggregateTypeCounts(appid);
+			}
+			for (Document counter : results) {
+				Object type = counter.get(ID);
+				if (type != null && (!isMaterialized() || isCounted(appid, type.toString()))) {
+					counts.put(type.toString(), counter.get(COUNT, Number.class).longValue());
+				}
+			}
+			if (isMaterialized()) {
+				for (String type : MongoDBUtils.getTypePolicyTypes("ttl", appid)) {
+					long count = isCounted(appid, type) ? 0 : countByType(appid, type);
+					if (count > 0) {
+						counts.put(type, count);
+					}
+				}
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return counts;
+	}
+
+	/**
+	 * Recomputes the materialized counters from the data in a table and its archive table.
+	 * Call this once after enabling materialized counters on an existing table.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if the counters were rebuilt
+	 */
+	public static boolean rebuildCounters(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return false;
+		}
+		try {
+			Map<Object, Long> counts = new LinkedHashMap<>();
+			sumTypeCounts(getTable(appid), counts);
+			if (MongoDBUtils.existsTable(getClient(appid), MongoDBArchive.getTableName(appid))) {
+				// archived objects are still counted by the DAO
+				sumTypeCounts(MongoDBArchive.getTable(appid), counts);
+			}
+			List<WriteModel<Document>> counters = new ArrayList<>(counts.size());
+			counts.keySet().removeIf(type -> !isCounted(appid, type.toString()));
+			counts.forEach((type, count) -> counters.add(new ReplaceOneModel<>(Filters.eq(ID, type),
+					new Document(COUNT, count), new ReplaceOptions().upsert(true))));
+			getCountersTable(appid).deleteMany(new Document());
+			if (!counters.isEmpty()) {
+				getCountersTable(appid).bulkWrite(counters);
+			}
+			logger.info("Rebuilt {} counters for table '{}'.", counters.size(), getTableNameForAppid(appid));
+		} catch (Exception e) {
+			logger.error(null, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the counters collection for a table.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 */
+	static void dropCounters(String appid) {
+		if (!StringUtils.isBlank(appid)) {
+			getCountersTable(appid).drop();
+		}
+	}
+
+	/**
+	 * Adjusts the materialized counters. Does nothing if materialized counters are disabled.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param deltas a map of type to count delta
+	 */
+	static void increment(String appid, Map<String, Long> deltas) {
+		if (StringUtils.isBlank(appid) || deltas == null || deltas.isEmpty() || !isMaterialized()) {
+			return;
+		}
+		try {
+			List<WriteModel<Document>> updates = new ArrayList<>(deltas.size());
+			for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+				if (delta.getKey() != null && delta.getValue() != null && delta.getValue() != 0
+						&& isCounted(appid, delta.getKey())) {
+					updates.add(new UpdateOneModel<>(Filters.eq(ID, delta.getKey()),
+							Updates.inc(COUNT, delta.getValue()), new UpdateOptions().upsert(true)));
+				}
+			}
+			if (!updates.isEmpty()) {
+				getCountersTable(appid).bulkWrite(updates);
+			}
+		} catch (Exception e) {
+			// counters are only informational, a failed update shouldn't fail the write itself
+			logger.warn("Failed to update counters for table '{}': {}", getTableNameForAppid(appid), e.getMessage());
+		}
+	}
+
+	static void increment(String appid, String type, long delta) {
+		if (type != null) {
+			increment(appid, Collections.singletonMap(type, delta));
+		}
+	}
+
+	/**
+	 * Returns false for types with a TTL, which have no materialized counter.
+	 */
+	private static boolean isCounted(String appid, String type) {
+		return MongoDBUtils.getTTL(appid, type) <= 0;
+	}
+
+	private static Iterable<Document> aggregateTypeCounts(String appid) {
+		return aggregateTypeCounts(getTable(appid));
+	}
+
+	private static Iterable<Document> aggregateTypeCounts(MongoCollection<Document> table) {
+		return table.aggregate(List.of(Aggregates.group("$" + Config._TYPE, Accumulators.sum(COUNT, 1L))));
+	}
+
+	private static void sumTypeCounts(MongoCollection<Document> table, Map<Object, Long> counts) {
+		for (Document counter : aggregateTypeCounts(table)) {
+			if (counter.get(ID) != null) {
+				counts.merge(counter.get(ID), counter.get(COUNT, Number.class).longValue(), Long::sum);
+			}
+		}
+	}
+
+	private static MongoCollection<Document> getCountersTable(String appid) {
+		return getClient(appid).getCollection(getTableNameForAppid(appid) + COUNTERS_SUFFIX);
+	}
+}
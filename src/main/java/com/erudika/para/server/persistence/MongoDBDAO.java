@@ -27,32 +27,58 @@ import com.erudika.para.core.utils.Para;
 import com.erudika.para.core.utils.ParaObjectUtils;
 import com.erudika.para.core.utils.Utils;
 import static com.erudika.para.server.persistence.MongoDBUtils.getTable;
-import com.mongodb.BasicDBObject;
+import com.mongodb.ClientBulkWriteException;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.bulk.BulkWriteResult;
-import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.bulk.ClientBulkWriteOptions;
+import com.mongodb.client.model.bulk.ClientBulkWriteResult;
+import com.mongodb.client.model.bulk.ClientNamespacedWriteModel;
+import com.mongodb.client.model.bulk.ClientReplaceOneOptions;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 import java.lang.annotation.Annotation;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +92,10 @@ public class MongoDBDAO implements DAO {
 	private static final String ID = "_id";
 	private static final String OBJECT_ID = "_ObjectId";
 	private static final Pattern FIELD_NAME_ENCODING_PATTERN = Pattern.compile("^Base64:.*?:(.*)$");
+	private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+	private static final int IMMUTABLE_FIELD_ERROR = 66;
+	private static final String STRING_PAGE_KEY_PREFIX = "~";
+	private static final Set<String> IMMUTABLE_FIELDS = Set.of(Config._ID, Config._APPID, Config._TYPE, ID, OBJECT_ID);
 
 	static {
 		// set up automatic table creation and deletion
@@ -77,6 +107,16 @@ public class MongoDBDAO implements DAO {
 		App.addAppDeletedListener((App app) -> {
 			if (app != null && !app.isSharingTable()) {
 				MongoDBUtils.deleteTable(app.getAppIdentifier());
+				MongoDBArchive.dropTable(app.getAppIdentifier());
+			}
+		});
+		// connect and check the tables in the background, instead of on the first request
+		Para.addInitListener(() -> {
+			if (MongoDBBootstrap.isEnabled()) {
+				MongoDBBootstrap.start();
+			}
+			if (MongoDBArchive.isEnabled()) {
+				MongoDBArchive.start();
 			}
 		});
 	}
@@ -104,7 +144,7 @@ public class MongoDBDAO implements DAO {
 			so.setTimestamp(Utils.timestamp());
 		}
 		so.setAppid(appid);
-		createRow(so.getId(), appid, toRow(so, null, false, true));
+		createRow(so.getId(), appid, toRow(appid, so, null, false, true));
 		logger.debug("DAO.create() {}", so.getId());
 		return so.getId();
 	}
@@ -123,7 +163,7 @@ public class MongoDBDAO implements DAO {
 	public <P extends ParaObject> void update(String appid, P so) {
 		if (so != null && so.getId() != null) {
 			so.setUpdated(Utils.timestamp());
-			updateRow(so.getId(), appid, toRow(so, Locked.class, true));
+			updateRow(so.getId(), appid, toRow(appid, so, Locked.class, true));
 			logger.debug("DAO.update() {}", so.getId());
 		}
 	}
@@ -131,7 +171,7 @@ public class MongoDBDAO implements DAO {
 	@Override
 	public <P extends ParaObject> void delete(String appid, P so) {
 		if (so != null && so.getId() != null) {
-			deleteRow(so.getId(), appid);
+			deleteRow(so.getId(), appid, so.getType());
 			logger.debug("DAO.delete() {}", so.getId());
 		}
 	}
@@ -144,55 +184,226 @@ public class MongoDBDAO implements DAO {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null || row.isEmpty()) {
 			return null;
 		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.point(appid);
 		try {
+			MongoDBKeyFilter.add(appid, key);
 			// if there isn't a document with the same id then create a new document
 			// else replace the document with the same id with the new one
-			getTable(appid).replaceOne(new Document(ID, key), row, new ReplaceOptions().upsert(true));
+			UpdateResult u = replaceRow(appid, key, row);
+			// an archived object which is created again was already counted
+			Map<String, String> archived = MongoDBArchive.isUsed(appid, row.getString(Config._TYPE)) ?
+					deleteArchived(appid, List.of(key)) : Collections.emptyMap();
+			MongoDBReadCoalescer.invalidate(appid, key);
+			MongoDBHeavyHitters.record("create", appid, key, 0);
+			if (u.getUpsertedId() != null && archived.isEmpty()) {
+				MongoDBCounters.increment(appid, row.getString(Config._TYPE), 1);
+			}
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
+		} finally {
+			permit.close();
 		}
 		return key;
 	}
 
+	private UpdateResult replaceRow(String appid, String key, Document row) {
+		try {
+			return MongoDBResilience.execute(cluster(appid), () ->
+					getTable(appid).replaceOne(upsertFilter(appid, key), row, new ReplaceOptions().upsert(true)));
+		} catch (MongoWriteException e) {
+			if (e.getError().getCode() != IMMUTABLE_FIELD_ERROR) {
+				throw e;
+			}
+			// the object is stored with a string id, which a replace can't change - it keeps it until the table is migrated
+			Document legacyRow = new Document(row);
+			legacyRow.put(ID, key);
+			return MongoDBResilience.execute(cluster(appid), () ->
+					getTable(appid).replaceOne(storedKeyFilter(appid, key), legacyRow, new ReplaceOptions().upsert(true)));
+		}
+	}
+
 	//http://www.mkyong.com/mongodb/java-mongodb-update-document/
 	private void updateRow(String key, String appid, Document row) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null || row.isEmpty()) {
 			return;
 		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.point(appid);
 		try {
-			UpdateResult u = getTable(appid).updateOne(new Document(ID, key), new Document("$set", row));
+			UpdateResult u = MongoDBResilience.execute(cluster(appid), () ->
+					getTable(appid).updateOne(keyFilter(appid, key), new Document("$set", row)));
+			updateArchived(appid, List.of(key), List.of(new UpdateOneModel<>(keyFilter(appid, key), new Document("$set", row))),
+					u.getMatchedCount());
+			MongoDBReadCoalescer.invalidate(appid, key);
+			MongoDBHeavyHitters.record("update", appid, key, 0);
 			logger.debug("key: " + key + " updated count: " + u.getModifiedCount());
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
+		} finally {
+			permit.close();
 		}
 	}
 
 	private Document readRow(String key, String appid) {
-		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) ||
+				(MongoDBKeyFilter.isUsedByAllReads() && !MongoDBKeyFilter.mightContain(appid, key))) {
 			return null;
 		}
 		Document row = null;
+		MongoDBAdmission.Permit permit = MongoDBAdmission.point(appid);
 		try {
-			row = getTable(appid).find(new Document(ID, key)).first();
+			RawBsonDocument raw = MongoDBReadCoalescer.read(appid, key, () -> {
+				if (MongoDBReadBatcher.isEnabled()) {
+					return MongoDBReadBatcher.read(appid, key, keys -> readRawRows(appid, keys));
+				}
+				Bson filter = notExpired(keyFilter(appid, key));
+				RawBsonDocument doc = MongoDBResilience.hedge(cluster(appid), () -> getRawTable(appid).find(filter).first(),
+						() -> getRawTable(appid).withReadPreference(ReadPreference.secondaryPreferred()).find(filter).first());
+				return (doc == null && MongoDBArchive.isUsed(appid)) ? readArchivedRows(appid, List.of(key)).get(key) : doc;
+			});
+			MongoDBHeavyHitters.record("read", appid, key, (raw == null) ? 0 : raw.getByteBuffer().remaining());
+			row = (raw == null) ? null : raw.decode(DOCUMENT_CODEC);
 			logger.debug("id: " + key + " row null: " + (row == null));
 		} catch (Exception e) {
 			logger.error(null, e);
+		} finally {
+			permit.close();
 		}
 		return (row == null || row.isEmpty()) ? null : row;
 	}
 
-	private void deleteRow(String key, String appid) {
+	private Map<String, RawBsonDocument> readRawRows(String appid, List<String> allKeys) {
+		List<String> keys = MongoDBKeyFilter.isUsedByAllReads() ?
+				allKeys.stream().filter(key -> MongoDBKeyFilter.mightContain(appid, key)).toList() : allKeys;
+		if (keys.isEmpty()) {
+			return new HashMap<>();
+		}
+		// large key lists are split into chunks, which are loaded in parallel on separate connections
+		List<List<RawBsonDocument>> chunks = MongoDBExecutors.invokeAll(cluster(appid), MongoDBExecutors.partition(keys, getMaxKeysPerQuery()),
+				chunk -> {
+					Bson filter = notExpired(keysFilter(appid, chunk));
+					return MongoDBResilience.execute(cluster(appid), () -> getRawTable(appid).find(filter).into(new ArrayList<>(chunk.size())));
+				});
+		Map<String, RawBsonDocument> docsById = HashMap.newHashMap(keys.size());
+		for (List<RawBsonDocument> docs : chunks) {
+			for (RawBsonDocument doc : docs) {
+				docsById.put(idOf(doc), doc);
+			}
+		}
+		if (docsById.size() < keys.size() && MongoDBArchive.isUsed(appid)) {
+			List<String> missing = keys.stream().filter(key -> !docsById.containsKey(key)).toList();
+			docsById.putAll(readArchivedRows(appid, missing));
+		}
+		return docsById;
+	}
+
+	/**
+	 * Reads objects which are no longer in the main table from the archive, and optionally moves them back.
+	 */
+	private Map<String, RawBsonDocument> readArchivedRows(String appid, List<String> keys) {
+		Map<String, RawBsonDocument> docsById = new HashMap<>();
+		for (List<String> chunk : MongoDBExecutors.partition(keys, getMaxKeysPerQuery())) {
+			Bson filter = keysFilter(appid, chunk);
+			MongoDBResilience.execute(cluster(appid), () -> MongoDBArchive.getTable(appid).withDocumentClass(RawBsonDocument.class).
+					find(filter).into(new ArrayList<>())).forEach(doc -> docsById.put(idOf(doc), doc));
+		}
+		if (!docsById.isEmpty() && MongoDBArchive.isPromoteOnRead()) {
+			MongoDBArchive.promoteLater(appid, keysFilter(appid, new ArrayList<>(docsById.keySet())));
+		}
+		return docsById;
+	}
+
+	/**
+	 * Moves archived objects which were not found by an update back to the main table, then repeats their updates.
+	 * @param ids the ids of the updated objects, in the same order as the updates
+	 * @return the number of objects updated after being moved back
+	 */
+	private long updateArchived(String appid, List<String> ids, List<WriteModel<Document>> updates, long matched) {
+		return updateArchived(appid, ids, updates, matched, true);
+	}
+
+	private long updateArchived(String appid, List<String> ids, List<WriteModel<Document>> updates, long matched, boolean idempotent) {
+		if (matched >= ids.size() || !MongoDBArchive.isUsed(appid)) {
+			return 0;
+		}
+		Set<String> promoted = MongoDBArchive.promote(appid, keysFilter(appid, ids));
+		List<WriteModel<Document>> retries = new ArrayList<>(promoted.size());
+		for (int i = 0; i < ids.size(); i++) {
+			if (promoted.contains(ids.get(i))) {
+				retries.add(updates.get(i));
+			}
+		}
+		if (retries.isEmpty()) {
+			return 0;
+		}
+		return executeUpdate(appid, idempotent, () -> getTable(appid).bulkWrite(retries, bulkWriteOptions())).getMatchedCount();
+	}
+
+	private long deleteRows(String appid, Collection<String> keys) {
+		List<String> uniqueKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+		boolean archive = MongoDBArchive.isUsed(appid);
+		List<Long> deleted = MongoDBExecutors.invokeAll(cluster(appid), MongoDBExecutors.partition(uniqueKeys, getMaxKeysPerQuery()), chunk -> {
+			Set<String> archived = archive ? deleteArchived(appid, chunk).keySet() : Collections.emptySet();
+			// an object may briefly be in both tables while it's being archived, it's only counted once
+			List<String> unarchived = chunk.stream().filter(key -> !archived.contains(key)).toList();
+			long d = unarchived.isEmpty() ? 0 : MongoDBResilience.execute(cluster(appid), () ->
+					getTable(appid).deleteMany(keysFilter(appid, unarchived))).getDeletedCount();
+			if (!archived.isEmpty()) {
+				MongoDBResilience.execute(cluster(appid), () -> getTable(appid).deleteMany(keysFilter(appid, new ArrayList<>(archived))));
+			}
+			MongoDBReadCoalescer.invalidate(appid, chunk);
+			MongoDBHeavyHitters.record("delete", appid, chunk);
+			return d + archived.size();
+		});
+		return deleted.stream().mapToLong(Long::longValue).sum();
+	}
+
+	/**
+	 * Deletes the archived copies of objects, which must go whenever an object is created again or deleted,
+	 * or else a read which misses the main table would return the old copy. Callers check
+	 * {@link MongoDBArchive#isUsed(String, String)} first.
+	 * @return the type of each archived object deleted, by id
+	 */
+	private Map<String, String> deleteArchived(String appid, List<String> keys) {
+		if (keys.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Bson filter = keysFilter(appid, keys);
+		MongoCollection<Document> archive = MongoDBArchive.getTable(appid);
+		Map<String, String> archived = new HashMap<>();
+		MongoDBResilience.execute(cluster(appid), () -> archive.find(filter).projection(new Document(ID, 1).append(Config._TYPE, 1)).
+				into(new ArrayList<>())).forEach(doc -> archived.put(MongoDBUtils.fromStoredId(doc.get(ID)), doc.getString(Config._TYPE)));
+		if (!archived.isEmpty()) {
+			MongoDBResilience.execute(cluster(appid), () -> archive.deleteMany(filter));
+		}
+		return archived;
+	}
+
+	private int getMaxKeysPerQuery() {
+		return MongoDBUtils.getConfigInt("max_keys_per_query", 1000);
+	}
+
+	private void deleteRow(String key, String appid, String type) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
 			return;
 		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.point(appid);
 		try {
-			DeleteResult d = getTable(appid).deleteOne(new Document(ID, key));
+			// the archived copy goes first, so that no read can fall back to it once the object is deleted
+			boolean archived = MongoDBArchive.isUsed(appid, type) && !deleteArchived(appid, List.of(key)).isEmpty();
+			DeleteResult d = MongoDBResilience.execute(cluster(appid), () -> getTable(appid).deleteOne(keyFilter(appid, key)));
+			MongoDBReadCoalescer.invalidate(appid, key);
+			MongoDBHeavyHitters.record("delete", appid, key, 0);
 			logger.debug("key: " + key + " deleted count: " + d.getDeletedCount());
+			if (d.getDeletedCount() > 0 || archived) {
+				MongoDBCounters.increment(appid, type, -1);
+			}
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
+		} finally {
+			permit.close();
 		}
 	}
 
@@ -205,50 +416,211 @@ public class MongoDBDAO implements DAO {
 		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
 			return;
 		}
+		MongoDBBulkResult result = null;
 		try {
-			// fix duplicate _id errors by using a map
-			List<WriteModel<Document>> bulkOperations = new ArrayList<>();
-			for (ParaObject so : objects) {
-				if (so != null) {
-					if (StringUtils.isBlank(so.getId())) {
-						so.setId(MongoDBUtils.generateNewId());
-						logger.debug("Generated id: " + so.getId());
-					}
-					if (so.getTimestamp() == null) {
-						so.setTimestamp(Utils.timestamp());
-					}
-					so.setAppid(appid);
-					Document doc = toRow(so, null, false, true);
-					Object id = doc.get(ID);
-					doc.remove(ID); // fix MongoWriteConcernException error
-					bulkOperations.add(new ReplaceOneModel<>(Filters.eq(ID, id), doc, new ReplaceOptions().upsert(true)));
-				}
-			}
-			if (!bulkOperations.isEmpty()) {
-				getTable(appid).bulkWrite(bulkOperations);
-			}
+			result = tryCreateAll(appid, objects);
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
 		}
+		logFailures("createAll", result);
 		logger.debug("DAO.createAll() {}", objects.size());
 	}
 
+	/**
+	 * Creates (or replaces) objects like {@link #createAll(String, List)}, but reports the outcome of each object.
+	 * Objects which fail with a transient error are retried, up to {@code para.mongodb.retry_max_attempts} times,
+	 * without sending the other objects again. Write errors are returned instead of being logged or thrown.
+	 * @param <P> the type of object
+	 * @param appid app identifier
+	 * @param objects the objects to write
+	 * @return the ids of the objects written and of those which failed
+	 */
+	public <P extends ParaObject> MongoDBBulkResult tryCreateAll(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return new MongoDBBulkResult();
+		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
+		try {
+			Map<String, ParaObject> uniqueObjects = uniqueObjects(appid, objects);
+			List<WriteModel<Document>> bulkOperations = new ArrayList<>(uniqueObjects.size());
+			List<String> types = new ArrayList<>(uniqueObjects.size());
+			for (ParaObject so : uniqueObjects.values()) {
+				bulkOperations.add(new ReplaceOneModel<>(upsertFilter(appid, so.getId()), toUpsertRow(appid, so), new ReplaceOptions().upsert(true)));
+				types.add(so.getType());
+			}
+			List<String> keys = new ArrayList<>(uniqueObjects.keySet());
+			Set<Integer> upserted = new HashSet<>();
+			MongoDBKeyFilter.add(appid, keys);
+			MongoDBBulkResult result = bulkWrite(appid, keys, bulkOperations, index -> {
+				// the object is stored with a string id, which a replace can't change - it keeps it until the table is migrated
+				Document row = new Document(((ReplaceOneModel<Document>) bulkOperations.get(index)).getReplacement());
+				row.remove(ID);
+				return new ReplaceOneModel<>(storedKeyFilter(appid, keys.get(index)), row, new ReplaceOptions().upsert(true));
+			}, upserted::add);
+			// archived objects which are created again were already counted
+			Set<String> archived = MongoDBArchive.isUsed(appid, types) ?
+					deleteArchived(appid, result.getSucceeded()).keySet() : Collections.emptySet();
+			Map<String, Long> inserted = new HashMap<>();
+			upserted.stream().filter(index -> !archived.contains(keys.get(index))).
+					forEach(index -> inserted.merge(types.get(index), 1L, Long::sum));
+			MongoDBReadCoalescer.invalidate(appid, uniqueObjects.keySet());
+			MongoDBHeavyHitters.record("create", appid, uniqueObjects.keySet());
+			MongoDBCounters.increment(appid, inserted);
+			return result;
+		} finally {
+			permit.close();
+		}
+	}
+
+	/**
+	 * Runs a bulk write and retries only the operations which failed with a transient error, or which weren't
+	 * attempted because an earlier operation of an ordered write failed. Operations which fail for good are
+	 * reported in the result. The operations must be idempotent.
+	 * @param ids the object id of each operation
+	 * @param legacy rewrites an upsert for an object which is still stored with a string id, can be null
+	 * @param onUpsert called with the index of each operation which inserted a new document
+	 */
+	private MongoDBBulkResult bulkWrite(String appid, List<String> ids, List<WriteModel<Document>> ops,
+			IntFunction<WriteModel<Document>> legacy, IntConsumer onUpsert) {
+		MongoDBBulkResult result = new MongoDBBulkResult();
+		List<WriteModel<Document>> models = new ArrayList<>(ops);
+		Set<Integer> rewritten = new HashSet<>();
+		List<Integer> pending = IntStream.range(0, ops.size()).boxed().toList();
+		int maxAttempts = Math.max(1, MongoDBUtils.getConfigInt("retry_max_attempts", 3));
+		int attempt = 0;
+		RuntimeException lastError = null;
+		while (!pending.isEmpty()) {
+			List<Integer> batch = pending;
+			List<WriteModel<Document>> writes = batch.stream().map(models::get).toList();
+			List<Integer> retries = new ArrayList<>();
+			boolean failedTransiently = false;
+			try {
+				BulkWriteResult res = MongoDBResilience.execute(cluster(appid), () -> getTable(appid).bulkWrite(writes, bulkWriteOptions()));
+				res.getUpserts().forEach(u -> onUpsert.accept(batch.get(u.getIndex())));
+				result.addMatched(res.getMatchedCount());
+				batch.forEach(index -> result.succeeded(ids.get(index)));
+			} catch (MongoBulkWriteException e) {
+				lastError = e;
+				e.getWriteResult().getUpserts().forEach(u -> onUpsert.accept(batch.get(u.getIndex())));
+				failedTransiently = sortWriteErrors(e, batch, ids, models, legacy, rewritten, retries, result);
+			} catch (RuntimeException e) {
+				// the whole batch failed, even after the retries in MongoDBResilience
+				MongoDBBulkResult.Failure failure = MongoDBResilience.isUnavailable(e) ?
+						MongoDBBulkResult.Failure.RETRYABLE : MongoDBBulkResult.Failure.OTHER;
+				batch.forEach(index -> result.failed(ids.get(index), failure, e.getMessage(), e));
+				break;
+			}
+			if (failedTransiently && ++attempt >= maxAttempts) {
+				for (int index : retries) {
+					result.failed(ids.get(index), MongoDBBulkResult.Failure.RETRYABLE, lastError.getMessage(), lastError);
+				}
+				break;
+			} else if (failedTransiently) {
+				logger.debug("Retrying {} of {} bulk write operations (attempt {}).", retries.size(), batch.size(), attempt);
+				MongoDBResilience.backoff(attempt);
+			}
+			pending = retries;
+		}
+		return result;
+	}
+
+	/**
+	 * Sorts the operations of a partly failed bulk write into those which succeeded, failed or should be retried.
+	 * @return true if any operation failed with a transient error
+	 */
+	private boolean sortWriteErrors(MongoBulkWriteException e, List<Integer> batch, List<String> ids, List<WriteModel<Document>> models,
+			IntFunction<WriteModel<Document>> legacy, Set<Integer> rewritten, List<Integer> retries, MongoDBBulkResult result) {
+		Map<Integer, BulkWriteError> errors = new HashMap<>(e.getWriteErrors().size());
+		e.getWriteErrors().forEach(error -> errors.put(error.getIndex(), error));
+		// an ordered write stops at the first error, the operations after it weren't attempted
+		int lastAttempted = (isOrdered() && !errors.isEmpty()) ? Collections.min(errors.keySet()) : batch.size() - 1;
+		// after a write concern error it's unknown if the writes are durable, so they are sent again
+		boolean unacknowledged = e.getWriteConcernError() != null;
+		if (!unacknowledged) {
+			result.addMatched(e.getWriteResult().getMatchedCount());
+		}
+		boolean failedTransiently = false;
+		for (int i = 0; i < batch.size(); i++) {
+			int index = batch.get(i);
+			BulkWriteError error = errors.get(i);
+			if (error == null) {
+				if (i > lastAttempted || unacknowledged) {
+					retries.add(index);
+					failedTransiently |= unacknowledged;
+				} else {
+					result.succeeded(ids.get(index));
+				}
+			} else if (error.getCode() == IMMUTABLE_FIELD_ERROR && legacy != null && rewritten.add(index)) {
+				models.set(index, legacy.apply(index));
+				retries.add(index);
+			} else if (MongoDBBulkResult.classify(error.getCode()) == MongoDBBulkResult.Failure.RETRYABLE) {
+				retries.add(index);
+				failedTransiently = true;
+			} else {
+				result.failed(ids.get(index), MongoDBBulkResult.classify(error.getCode()), error.getMessage(), e);
+			}
+		}
+		return failedTransiently;
+	}
+
+	private void logFailures(String method, MongoDBBulkResult result) {
+		if (result != null && !result.isSuccess()) {
+			logger.error("DAO.{}() failed for {} objects: {}", method, result.getFailed().size(), result.getFailed(), result.getError());
+			throwIfNecessary(result.getError());
+		}
+	}
+
+	/**
+	 * Returns the replacement document for a bulk upsert. String ids are left out (the upsert takes them
+	 * from the filter), but ObjectIds can't be, because their filter matches both forms of the id.
+	 */
+	private Document toUpsertRow(String appid, ParaObject so) {
+		Document doc = toRow(appid, so, null, false, true);
+		if (!MongoDBUtils.isCompactId(so.getId())) {
+			doc.remove(ID); // fix MongoWriteConcernException error
+		}
+		return doc;
+	}
+
+	private <P extends ParaObject> Map<String, ParaObject> uniqueObjects(String appid, List<P> objects) {
+		// fix duplicate _id errors by using a map - the last object with a given id wins
+		Map<String, ParaObject> uniqueObjects = new LinkedHashMap<>(objects.size());
+		for (ParaObject so : objects) {
+			if (so != null) {
+				if (StringUtils.isBlank(so.getId())) {
+					so.setId(MongoDBUtils.generateNewId());
+					logger.debug("Generated id: " + so.getId());
+				}
+				if (so.getTimestamp() == null) {
+					so.setTimestamp(Utils.timestamp());
+				}
+				so.setAppid(appid);
+				uniqueObjects.remove(so.getId());
+				uniqueObjects.put(so.getId(), so);
+			}
+		}
+		return uniqueObjects;
+	}
+
 	@Override
 	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
 		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
 			return new LinkedHashMap<String, P>();
 		}
-		Map<String, P> results = new LinkedHashMap<String, P>(keys.size(), 0.75f, true);
-		BasicDBObject inQuery = new BasicDBObject();
-		inQuery.put(ID, new BasicDBObject("$in", keys));
-
-		MongoCursor<Document> cursor = getTable(appid).find(inQuery).iterator();
-		while (cursor.hasNext()) {
-			Document d = cursor.next();
-			P obj = fromRow(d);
-			if (d != null) {
-				results.put(d.getString(ID), obj);
+		// rows are returned without duplicates, in the same order as the keys
+		Map<String, RawBsonDocument> rows;
+		try (MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid)) {
+			rows = MongoDBReadCoalescer.readAll(appid, keys, missingKeys -> readRawRows(appid, missingKeys));
+		}
+		Map<String, P> results = LinkedHashMap.newLinkedHashMap(rows.size());
+		for (Entry<String, RawBsonDocument> row : rows.entrySet()) {
+			results.put(row.getKey(), fromRow(row.getValue().decode(DOCUMENT_CODEC)));
+		}
+		if (MongoDBHeavyHitters.isEnabled()) {
+			for (String key : keys) {
+				RawBsonDocument raw = rows.get(key);
+				MongoDBHeavyHitters.record("read", appid, key, (raw == null) ? 0 : raw.getByteBuffer().remaining());
 			}
 		}
 
@@ -256,6 +628,37 @@ public class MongoDBDAO implements DAO {
 		return results;
 	}
 
+	/**
+	 * Reads an object like {@link #read(String, String)}, but returns null without a query if the key filter
+	 * rules the id out (see {@code para.mongodb.key_filter_enabled}). Meant for existence checks of ids which
+	 * usually don't exist. An object created on another node moments ago may not be found yet.
+	 * @param <P> the type of object
+	 * @param appid app identifier
+	 * @param key object id
+	 * @return the object or null
+	 */
+	public <P extends ParaObject> P probe(String appid, String key) {
+		if (StringUtils.isBlank(key) || !MongoDBKeyFilter.mightContain(appid, key)) {
+			return null;
+		}
+		return read(appid, key);
+	}
+
+	/**
+	 * Reads objects like {@link #readAll(String, List, boolean)}, but leaves out ids which the key filter rules out
+	 * without a query. An object created on another node moments ago may not be found yet.
+	 * @param <P> the type of object
+	 * @param appid app identifier
+	 * @param keys object ids
+	 * @return a map of id to object, without the objects which don't exist
+	 */
+	public <P extends ParaObject> Map<String, P> probeAll(String appid, List<String> keys) {
+		if (keys == null || keys.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		return readAll(appid, keys.stream().filter(key -> MongoDBKeyFilter.mightContain(appid, key)).toList(), true);
+	}
+
 	@Override
 	public <P extends ParaObject> List<P> readPage(String appid, Pager pager) {
 		LinkedList<P> results = new LinkedList<P>();
@@ -265,21 +668,27 @@ public class MongoDBDAO implements DAO {
 		if (pager == null) {
 			pager = new Pager();
 		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
 		try {
 			String lastKey = pager.getLastKey();
-			MongoCursor<Document> cursor;
-			Bson filter = Filters.gt(OBJECT_ID, lastKey);
-			if (lastKey == null) {
-				cursor = getTable(appid).find().batchSize(pager.getLimit()).limit(pager.getLimit()).iterator();
-			} else {
-				cursor = getTable(appid).find(filter).batchSize(pager.getLimit()).limit(pager.getLimit()).iterator();
-			}
-			while (cursor.hasNext()) {
-				Map<String, Object> row = documentToMap(cursor.next());
+			boolean v2 = MongoDBUtils.getSchemaVersion() >= 2;
+			Bson filter = v2 ? pageFilter(lastKey) : (lastKey == null) ? new Document() : Filters.gt(OBJECT_ID, lastKey);
+			// version 1 pages in natural order, as it always did, so that no index on _ObjectId is needed
+			Bson sort = v2 ? Sorts.ascending(ID) : null;
+			int limit = pager.getLimit();
+			List<Document> rows = MongoDBResilience.execute(cluster(appid), () -> getTable(appid).find(notExpired(filter)).sort(sort).
+					batchSize(limit).limit(limit).into(new ArrayList<>(limit)));
+			for (Document doc : rows) {
+				Map<String, Object> row = documentToMap(doc);
 				P obj = fromRow(row);
+				if (v2) {
+					pager.setLastKey(pageKey(doc.get(ID)));
+				}
 				if (obj != null) {
 					results.add(obj);
-					pager.setLastKey((String) row.get(OBJECT_ID));
+					if (!v2) {
+						pager.setLastKey((String) row.get(OBJECT_ID));
+					}
 				}
 			}
 			if (!results.isEmpty()) {
@@ -287,36 +696,88 @@ public class MongoDBDAO implements DAO {
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
+		} finally {
+			permit.close();
 		}
 		logger.debug("readPage() page: {}, results:", pager.getPage(), results.size());
 		return results;
 	}
 
+	/**
+	 * Returns the key of the last object on a page. Strings sort before ObjectIds, so the next page needs to know
+	 * which form the id had. Only a string id which looks like an ObjectId is ambiguous, and it is marked.
+	 */
+	private String pageKey(Object storedId) {
+		String key = MongoDBUtils.fromStoredId(storedId);
+		return (storedId instanceof String && MongoDBUtils.isCompactId(key)) ? STRING_PAGE_KEY_PREFIX + key : key;
+	}
+
+	private Bson pageFilter(String lastKey) {
+		if (lastKey == null) {
+			return new Document();
+		}
+		String key = StringUtils.removeStart(lastKey, STRING_PAGE_KEY_PREFIX);
+		Object storedId = key.equals(lastKey) ? MongoDBUtils.toStoredId(key) : key;
+		if (storedId instanceof ObjectId) {
+			return Filters.gt(ID, storedId);
+		} else if (MongoDBUtils.isCompactIdsEnabled()) {
+			// after the last string id, the next page continues with the ObjectIds
+			return Filters.or(Filters.gt(ID, key), Filters.type(ID, BsonType.OBJECT_ID));
+		}
+		return Filters.gt(ID, key);
+	}
+
 	@Override
 	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
 		if (StringUtils.isBlank(appid) || objects == null) {
 			return;
 		}
+		MongoDBBulkResult result = null;
 		try {
-			ArrayList<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
-			List<String> ids = new ArrayList<String>(objects.size());
+			result = tryUpdateAll(appid, objects);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		}
+		logFailures("updateAll", result);
+		logger.debug("DAO.updateAll() {}", objects.size());
+	}
+
+	/**
+	 * Updates objects like {@link #updateAll(String, List)}, but reports the outcome of each object.
+	 * Objects which fail with a transient error are retried, up to {@code para.mongodb.retry_max_attempts} times,
+	 * without sending the other objects again. Write errors are returned instead of being logged or thrown.
+	 * @param <P> the type of object
+	 * @param appid app identifier
+	 * @param objects the objects to write
+	 * @return the ids of the objects written and of those which failed
+	 */
+	public <P extends ParaObject> MongoDBBulkResult tryUpdateAll(String appid, List<P> objects) {
+		if (StringUtils.isBlank(appid) || objects == null || objects.isEmpty()) {
+			return new MongoDBBulkResult();
+		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
+		try {
+			List<WriteModel<Document>> updates = new ArrayList<>(objects.size());
+			List<String> ids = new ArrayList<>(objects.size());
 			for (P object : objects) {
 				if (object != null) {
 					object.setUpdated(Utils.timestamp());
-					Document id = new Document(ID, object.getId());
-					Document data = new Document("$set", toRow(object, Locked.class, true));
-					UpdateOneModel<Document> um = new UpdateOneModel<Document>(id, data);
-					updates.add(um);
+					Bson id = keyFilter(appid, object.getId());
+					Document data = new Document("$set", toRow(appid, object, Locked.class, true));
+					updates.add(new UpdateOneModel<Document>(id, data));
 					ids.add(object.getId());
 				}
 			}
-			BulkWriteResult res = getTable(appid).bulkWrite(updates, new BulkWriteOptions().ordered(true));
-			logger.debug("Updated: " + res.getModifiedCount() + ", keys: " + ids);
-		} catch (Exception e) {
-			logger.error(null, e);
-			throwIfNecessary(e);
+			MongoDBBulkResult result = bulkWrite(appid, ids, updates, null, index -> { });
+			updateArchived(appid, ids, updates, result.getMatchedCount());
+			MongoDBReadCoalescer.invalidate(appid, ids);
+			MongoDBHeavyHitters.record("update", appid, ids);
+			logger.debug("Updated: " + result.getMatchedCount() + ", keys: " + ids);
+			return result;
+		} finally {
+			permit.close();
 		}
-		logger.debug("DAO.updateAll() {}", objects.size());
 	}
 
 	@Override
@@ -324,54 +785,559 @@ public class MongoDBDAO implements DAO {
 		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
 			return;
 		}
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
 		try {
-			BasicDBObject query = new BasicDBObject();
-			List<String> list = new ArrayList<String>();
-			for (ParaObject object : objects) {
-				list.add(object.getId());
+			if (MongoDBCounters.isMaterialized()) {
+				deleteAllAndCount(appid, objects);
+			} else {
+				List<String> list = new ArrayList<String>(objects.size());
+				for (ParaObject object : objects) {
+					if (object != null) {
+						list.add(object.getId());
+					}
+				}
+				deleteRows(appid, list);
 			}
-			query.put(ID, new BasicDBObject("$in", list));
-			getTable(appid).deleteMany(query);
 			logger.debug("DAO.deleteAll() {}", objects.size());
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
+		} finally {
+			permit.close();
 		}
 	}
 
+	private <P extends ParaObject> void deleteAllAndCount(String appid, List<P> objects) {
+		// objects are deleted in groups by type, so that the materialized counters stay exact
+		Map<String, Set<String>> idsByType = new HashMap<>();
+		for (ParaObject object : objects) {
+			if (object != null) {
+				idsByType.computeIfAbsent(object.getType(), k -> new LinkedHashSet<>()).add(object.getId());
+			}
+		}
+		Map<String, Long> deleted = new HashMap<>(idsByType.size());
+		for (Entry<String, Set<String>> group : idsByType.entrySet()) {
+			deleted.put(group.getKey(), -deleteRows(appid, group.getValue()));
+		}
+		MongoDBCounters.increment(appid, deleted);
+	}
+
+	/////////////////////////////////////////////
+	//				FILTERED FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Deletes all objects in an app which match a filter, with a single server-side operation
+	 * (one per type, if materialized counters are enabled).
+	 * @param appid app identifier
+	 * @param filter selects the objects to delete, must have at least one condition
+	 * @return the number of objects deleted
+	 */
+	public long deleteByFilter(String appid, MongoDBFilter filter) {
+		if (StringUtils.isBlank(appid) || filter == null) {
+			return 0;
+		}
+		Bson query = filter.toBson(appid);
+		long deleted = 0;
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
+		try {
+			if (MongoDBCounters.isMaterialized()) {
+				// deleted in groups by type, so that the counters stay exact
+				Set<String> types = new LinkedHashSet<>();
+				if (filter.getType() != null) {
+					types.add(filter.getType());
+				} else {
+					MongoDBResilience.execute(cluster(appid), () -> getTable(appid).distinct(Config._TYPE, query, String.class).into(types));
+					if (MongoDBArchive.isUsed(appid)) {
+						// archived objects of a type may have no copies left in the main table
+						MongoDBResilience.execute(cluster(appid), () ->
+								MongoDBArchive.getTable(appid).distinct(Config._TYPE, query, String.class).into(types));
+					}
+				}
+				for (String type : types) {
+					Bson typeQuery = Filters.and(query, Filters.eq(Config._TYPE, type));
+					long d = deleteMany(appid, typeQuery);
+					MongoDBCounters.increment(appid, type, -d);
+					deleted += d;
+				}
+			} else {
+				deleted = deleteMany(appid, query);
+			}
+			MongoDBReadCoalescer.invalidateAll(appid);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		} finally {
+			permit.close();
+		}
+		logger.debug("DAO.deleteByFilter() {}", deleted);
+		return deleted;
+	}
+
+	private long deleteMany(String appid, Bson query) {
+		long deleted = 0;
+		if (MongoDBArchive.isUsed(appid)) {
+			// an object may briefly be in both tables while it's being archived, it's only counted once, as archived
+			for (List<Object> chunk : MongoDBExecutors.partition(archivedIds(appid, query), getMaxKeysPerQuery())) {
+				MongoDBResilience.execute(cluster(appid), () -> getTable(appid).deleteMany(Filters.and(query, Filters.in(ID, chunk))));
+			}
+			deleted += MongoDBResilience.execute(cluster(appid), () ->
+					MongoDBArchive.getTable(appid).deleteMany(query)).getDeletedCount();
+		}
+		deleted += MongoDBResilience.execute(cluster(appid), () -> getTable(appid).deleteMany(query)).getDeletedCount();
+		return deleted;
+	}
+
+	private List<Object> archivedIds(String appid, Bson query) {
+		return MongoDBResilience.execute(cluster(appid), () -> MongoDBArchive.getTable(appid).find(query).
+				projection(new Document(ID, 1)).map(doc -> doc.get(ID)).into(new ArrayList<>()));
+	}
+
+	/**
+	 * Sets fields on all objects in an app which match a filter, with a single server-side operation.
+	 * The {@code updated} timestamp is set too. Fields which identify an object can't be changed.
+	 * Archived objects which match are updated in the archive table.
+	 * @param appid app identifier
+	 * @param filter selects the objects to update, must have at least one condition
+	 * @param changes a map of field name to new value
+	 * @return the number of objects modified
+	 */
+	public long updateByFilter(String appid, MongoDBFilter filter, Map<String, Object> changes) {
+		if (StringUtils.isBlank(appid) || filter == null || changes == null || changes.isEmpty()) {
+			return 0;
+		}
+		Bson query = filter.toBson(appid);
+		Document set = new Document();
+		for (Entry<String, Object> change : changes.entrySet()) {
+			if (IMMUTABLE_FIELDS.contains(change.getKey())) {
+				throw new IllegalArgumentException("Field '" + change.getKey() + "' can't be changed.");
+			}
+			set.put(sanitizeField(change.getKey()), sanitizeValue(change.getValue()));
+		}
+		set.put(Config._UPDATED, Utils.timestamp());
+		long modified = 0;
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
+		try {
+			Document update = new Document("$set", set);
+			if (MongoDBArchive.isUsed(appid)) {
+				// an object which is in both tables while it's being archived is updated in the main table first,
+				// so the second update there leaves it unmodified and it's only counted once
+				for (List<Object> chunk : MongoDBExecutors.partition(archivedIds(appid, query), getMaxKeysPerQuery())) {
+					MongoDBResilience.execute(cluster(appid), () -> getTable(appid).updateMany(Filters.and(query, Filters.in(ID, chunk)), update));
+				}
+				// archived objects are updated where they are, or reads which fall back to the archive would return old values
+				modified += MongoDBResilience.execute(cluster(appid), () ->
+						MongoDBArchive.getTable(appid).updateMany(query, update)).getModifiedCount();
+			}
+			modified += MongoDBResilience.execute(cluster(appid), () -> getTable(appid).updateMany(query, update)).getModifiedCount();
+			MongoDBReadCoalescer.invalidateAll(appid);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		} finally {
+			permit.close();
+		}
+		logger.debug("DAO.updateByFilter() {}", modified);
+		return modified;
+	}
+
+	/////////////////////////////////////////////
+	//				FIELD UPDATE FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Changes individual fields of an object with a single atomic update, without reading it first.
+	 * The {@code updated} timestamp is set too. Fields which identify an object can't be changed.
+	 * @param appid app identifier
+	 * @param id object id
+	 * @param changes the field changes
+	 * @return true if the object exists
+	 */
+	public boolean updateFields(String appid, String id, MongoDBFieldUpdate changes) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(id) || changes == null || changes.isEmpty()) {
+			return false;
+		}
+		Document update = toFieldUpdate(appid, changes);
+		boolean idempotent = changes.isIdempotent();
+		long matched = 0;
+		MongoDBAdmission.Permit permit = MongoDBAdmission.point(appid);
+		try {
+			matched = executeUpdate(appid, idempotent, () -> getTable(appid).updateOne(keyFilter(appid, id), update)).getMatchedCount();
+			matched += updateArchived(appid, List.of(id), List.of(new UpdateOneModel<>(keyFilter(appid, id), update)), matched, idempotent);
+			MongoDBReadCoalescer.invalidate(appid, id);
+			MongoDBHeavyHitters.record("update", appid, id, 0);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		} finally {
+			permit.close();
+		}
+		logger.debug("DAO.updateFields() {} {}", id, matched);
+		return matched > 0;
+	}
+
+	/**
+	 * Changes individual fields of many objects with a single bulk write, without reading them first.
+	 * @param appid app identifier
+	 * @param changesById a map of object id to the field changes for that object
+	 * @return the number of objects which exist
+	 */
+	public long updateFields(String appid, Map<String, MongoDBFieldUpdate> changesById) {
+		if (StringUtils.isBlank(appid) || changesById == null || changesById.isEmpty()) {
+			return 0;
+		}
+		List<WriteModel<Document>> updates = new ArrayList<>(changesById.size());
+		List<String> ids = new ArrayList<>(changesById.size());
+		boolean idempotent = true;
+		for (Entry<String, MongoDBFieldUpdate> changes : changesById.entrySet()) {
+			if (!StringUtils.isBlank(changes.getKey()) && changes.getValue() != null && !changes.getValue().isEmpty()) {
+				updates.add(new UpdateOneModel<>(keyFilter(appid, changes.getKey()), toFieldUpdate(appid, changes.getValue())));
+				ids.add(changes.getKey());
+				idempotent &= changes.getValue().isIdempotent();
+			}
+		}
+		boolean retryable = idempotent;
+		if (updates.isEmpty()) {
+			return 0;
+		}
+		long matched = 0;
+		MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(appid);
+		try {
+			matched = executeUpdate(appid, retryable, () -> getTable(appid).bulkWrite(updates, bulkWriteOptions())).getMatchedCount();
+			matched += updateArchived(appid, ids, updates, matched, retryable);
+			MongoDBReadCoalescer.invalidate(appid, ids);
+			MongoDBHeavyHitters.record("update", appid, ids);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		} finally {
+			permit.close();
+		}
+		logger.debug("DAO.updateFields() {} {}", ids.size(), matched);
+		return matched;
+	}
+
+	/**
+	 * Runs an update with retries only if applying it twice has the same effect as applying it once. Otherwise it
+	 * relies on the driver's retryable writes, which retry a write once and make sure it's applied only once.
+	 */
+	private <T> T executeUpdate(String appid, boolean idempotent, Supplier<T> call) {
+		return idempotent ? MongoDBResilience.execute(cluster(appid), call) : MongoDBResilience.executeOnce(cluster(appid), call);
+	}
+
+	private Document toFieldUpdate(String appid, MongoDBFieldUpdate changes) {
+		Document update = new Document();
+		for (Entry<String, Map<String, Object>> operation : changes.getOperations().entrySet()) {
+			Document fields = new Document();
+			for (Entry<String, Object> change : operation.getValue().entrySet()) {
+				fields.put(sanitizePath(appid, change.getKey()), sanitizeValue(change.getValue()));
+			}
+			update.put(operation.getKey(), fields);
+		}
+		if (!changes.contains(Config._UPDATED)) {
+			((Document) update.computeIfAbsent("$set", k -> new Document())).put(Config._UPDATED, Utils.timestamp());
+		}
+		return update;
+	}
+
+	/**
+	 * Sanitizes each key of a field path separately, so that the dots between them are kept.
+	 */
+	private String sanitizePath(String appid, String path) {
+		String[] keys = StringUtils.split(path, '.');
+		if (IMMUTABLE_FIELDS.contains(keys[0])) {
+			throw new IllegalArgumentException("Field '" + keys[0] + "' can't be changed.");
+		}
+		// a compressed map is stored as binary data, the server can't change the keys inside it
+		if (keys.length > 1 && MongoDBCompression.mayCompress(appid, keys[0])) {
+			throw new IllegalArgumentException("Field '" + path + "' can't be changed, '" + keys[0] + "' may be stored compressed. "
+					+ "Add it to para.mongodb.compression_excluded_fields.");
+		}
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = sanitizeField(keys[i]);
+		}
+		return String.join(".", keys);
+	}
+
+	/////////////////////////////////////////////
+	//				MULTI-APP BATCH FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Creates (or replaces) objects in many apps at once. On MongoDB 8.0+ all objects are sent with a single
+	 * {@code bulkWrite} command, otherwise each app is written with its own bulk write, in parallel.
+	 * @param <P> the type of object
+	 * @param objectsByAppid a map of app identifier to the objects to create in that app
+	 */
+	public <P extends ParaObject> void createAll(Map<String, List<P>> objectsByAppid) {
+		Map<String, List<P>> batches = nonEmptyBatches(objectsByAppid);
+		if (!useClientBulkWrite(batches)) {
+			MongoDBExecutors.invokeAll(new ArrayList<>(batches.entrySet()), b -> cluster(b.getKey()), b -> {
+				createAll(b.getKey(), b.getValue());
+				return null;
+			});
+			return;
+		}
+		List<ClientNamespacedWriteModel> ops = new ArrayList<>();
+		List<ParaObject> objects = new ArrayList<>();
+		List<String> appids = new ArrayList<>();
+		Map<String, Set<String>> idsByAppid = new LinkedHashMap<>(batches.size());
+		try {
+			for (Entry<String, List<P>> batch : batches.entrySet()) {
+				String appid = batch.getKey();
+				Map<String, ParaObject> uniqueObjects = uniqueObjects(appid, batch.getValue());
+				MongoNamespace namespace = MongoDBUtils.getNamespace(appid);
+				for (ParaObject so : uniqueObjects.values()) {
+					ops.add(ClientNamespacedWriteModel.replaceOne(namespace, upsertFilter(appid, so.getId()), toUpsertRow(appid, so),
+							ClientReplaceOneOptions.clientReplaceOneOptions().upsert(true)));
+					objects.add(so);
+					appids.add(appid);
+				}
+				idsByAppid.put(appid, uniqueObjects.keySet());
+			}
+			idsByAppid.forEach(MongoDBKeyFilter::add);
+			// objects still stored with a string id, while their replacement has an ObjectId, fail with an
+			// immutable field error, and are written again by createAll(String, List), which handles that case
+			Optional<ClientBulkWriteResult> res = clientBulkWrite(batches.keySet(), ops, objects, appids, this::createAll);
+			idsByAppid.forEach((appid, ids) -> {
+				MongoDBReadCoalescer.invalidate(appid, ids);
+				MongoDBHeavyHitters.record("create", appid, ids);
+			});
+			// objects written again have already updated the counters
+			if (res.isPresent() && res.get().getVerboseResults().isPresent()) {
+				Map<String, Map<String, Long>> inserted = new HashMap<>(batches.size());
+				res.get().getVerboseResults().get().getUpdateResults().forEach((i, r) -> {
+					if (r.getUpsertedId().isPresent()) {
+						inserted.computeIfAbsent(appids.get(i), k -> new HashMap<>()).merge(objects.get(i).getType(), 1L, Long::sum);
+					}
+				});
+				inserted.forEach(MongoDBCounters::increment);
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		}
+		logger.debug("DAO.createAll() {} apps, {} objects", batches.size(), ops.size());
+	}
+
+	/**
+	 * Updates objects in many apps at once. On MongoDB 8.0+ all updates are sent with a single
+	 * {@code bulkWrite} command, otherwise each app is updated with its own bulk write, in parallel.
+	 * @param <P> the type of object
+	 * @param objectsByAppid a map of app identifier to the objects to update in that app
+	 */
+	public <P extends ParaObject> void updateAll(Map<String, List<P>> objectsByAppid) {
+		Map<String, List<P>> batches = nonEmptyBatches(objectsByAppid);
+		if (!useClientBulkWrite(batches)) {
+			MongoDBExecutors.invokeAll(new ArrayList<>(batches.entrySet()), b -> cluster(b.getKey()), b -> {
+				updateAll(b.getKey(), b.getValue());
+				return null;
+			});
+			return;
+		}
+		List<ClientNamespacedWriteModel> ops = new ArrayList<>();
+		List<ParaObject> objects = new ArrayList<>();
+		List<String> appids = new ArrayList<>();
+		Map<String, List<String>> idsByAppid = new LinkedHashMap<>(batches.size());
+		try {
+			for (Entry<String, List<P>> batch : batches.entrySet()) {
+				String appid = batch.getKey();
+				MongoNamespace namespace = MongoDBUtils.getNamespace(appid);
+				List<String> ids = new ArrayList<>(batch.getValue().size());
+				for (P object : batch.getValue()) {
+					if (object != null) {
+						object.setUpdated(Utils.timestamp());
+						ops.add(ClientNamespacedWriteModel.updateOne(namespace, keyFilter(appid, object.getId()),
+								new Document("$set", toRow(appid, object, Locked.class, true))));
+						ids.add(object.getId());
+						objects.add(object);
+						appids.add(appid);
+					}
+				}
+				idsByAppid.put(appid, ids);
+			}
+			Optional<ClientBulkWriteResult> res = clientBulkWrite(batches.keySet(), ops, objects, appids, this::updateAll);
+			idsByAppid.forEach((appid, ids) -> {
+				MongoDBReadCoalescer.invalidate(appid, ids);
+				MongoDBHeavyHitters.record("update", appid, ids);
+			});
+			res.ifPresent(r -> logger.debug("Updated: " + r.getModifiedCount() + " in " + idsByAppid.size() + " apps"));
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		}
+		logger.debug("DAO.updateAll() {} apps, {} objects", batches.size(), ops.size());
+	}
+
+	/**
+	 * Deletes objects from many apps at once. On MongoDB 8.0+ all deletes are sent with a single
+	 * {@code bulkWrite} command, otherwise each app is deleted from with its own query, in parallel.
+	 * @param <P> the type of object
+	 * @param objectsByAppid a map of app identifier to the objects to delete from that app
+	 */
+	public <P extends ParaObject> void deleteAll(Map<String, List<P>> objectsByAppid) {
+		Map<String, List<P>> batches = nonEmptyBatches(objectsByAppid);
+		if (!useClientBulkWrite(batches)) {
+			MongoDBExecutors.invokeAll(new ArrayList<>(batches.entrySet()), b -> cluster(b.getKey()), b -> {
+				deleteAll(b.getKey(), b.getValue());
+				return null;
+			});
+			return;
+		}
+		List<ClientNamespacedWriteModel> ops = new ArrayList<>();
+		List<ParaObject> objects = new ArrayList<>();
+		List<String> appids = new ArrayList<>();
+		Map<String, Set<String>> idsByAppid = new LinkedHashMap<>(batches.size());
+		try {
+			for (Entry<String, List<P>> batch : batches.entrySet()) {
+				String appid = batch.getKey();
+				MongoNamespace namespace = MongoDBUtils.getNamespace(appid);
+				Set<String> ids = new LinkedHashSet<>(batch.getValue().size());
+				for (P object : batch.getValue()) {
+					// one delete per object, so that the materialized counters can be updated by type
+					if (object != null && object.getId() != null && ids.add(object.getId())) {
+						ops.add(ClientNamespacedWriteModel.deleteOne(namespace, keyFilter(appid, object.getId())));
+						objects.add(object);
+						appids.add(appid);
+					}
+				}
+				idsByAppid.put(appid, ids);
+			}
+			Optional<ClientBulkWriteResult> res = clientBulkWrite(batches.keySet(), ops, objects, appids, this::deleteAll);
+			idsByAppid.forEach((appid, ids) -> {
+				MongoDBReadCoalescer.invalidate(appid, ids);
+				MongoDBHeavyHitters.record("delete", appid, ids);
+			});
+			if (res.isPresent() && res.get().getVerboseResults().isPresent()) {
+				Map<String, Map<String, Long>> deleted = new HashMap<>(batches.size());
+				res.get().getVerboseResults().get().getDeleteResults().forEach((i, r) -> {
+					if (r.getDeletedCount() > 0) {
+						deleted.computeIfAbsent(appids.get(i), k -> new HashMap<>()).
+								merge(objects.get(i).getType(), -r.getDeletedCount(), Long::sum);
+					}
+				});
+				deleted.forEach(MongoDBCounters::increment);
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		}
+		logger.debug("DAO.deleteAll() {} apps, {} objects", batches.size(), ops.size());
+	}
+
+	private <P extends ParaObject> Map<String, List<P>> nonEmptyBatches(Map<String, List<P>> objectsByAppid) {
+		Map<String, List<P>> batches = new LinkedHashMap<>();
+		if (objectsByAppid != null) {
+			objectsByAppid.forEach((appid, objects) -> {
+				if (!StringUtils.isBlank(appid) && objects != null && !objects.isEmpty()) {
+					batches.put(appid, objects);
+				}
+			});
+		}
+		return batches;
+	}
+
+	private boolean useClientBulkWrite(Map<String, ?> batches) {
+		if (batches.size() <= 1 || batches.keySet().stream().anyMatch(appid -> MongoDBArchive.isUsed(appid))) {
+			// a single app gains nothing over a collection-level bulk write, and only those find archived objects
+			return false;
+		}
+		// a client bulk write can't span clusters, apps routed to different profiles are written separately
+		String profile = cluster(batches.keySet().iterator().next());
+		return batches.keySet().stream().allMatch(appid -> profile.equals(cluster(appid))) &&
+				MongoDBUtils.isClientBulkWriteSupported(profile);
+	}
+
+	/**
+	 * Runs a client bulk write. The objects whose operations failed, or weren't attempted after an error of an
+	 * ordered write, are written again app by app with {@code retry}, i.e. {@link #tryCreateAll(String, List)} and
+	 * the like, which retry transient errors and report the objects which fail for good. After a write concern error
+	 * it's unknown which writes are durable, so all objects are written again. The operations must be idempotent.
+	 * @param objects the object of each operation
+	 * @param appids the app of each operation
+	 * @param retry writes the objects of one app again
+	 * @return the result of the operations which succeeded, if the server sent one
+	 */
+	private Optional<ClientBulkWriteResult> clientBulkWrite(Collection<String> apps, List<ClientNamespacedWriteModel> ops,
+			List<ParaObject> objects, List<String> appids, BiConsumer<String, List<ParaObject>> retry) {
+		try (MongoDBAdmission.Permit permit = MongoDBAdmission.bulk(apps)) {
+			try {
+				return Optional.of(clientBulkWrite(appids.get(0), ops));
+			} catch (ClientBulkWriteException e) {
+				Set<Integer> failed = e.getWriteErrors().keySet();
+				int lastAttempted = (isOrdered() && !failed.isEmpty()) ? Collections.min(failed) : ops.size() - 1;
+				boolean unacknowledged = !e.getWriteConcernErrors().isEmpty() || e.getPartialResult().isEmpty();
+				Map<String, List<ParaObject>> retries = new LinkedHashMap<>();
+				for (int i = 0; i < ops.size(); i++) {
+					if (unacknowledged || i > lastAttempted || failed.contains(i)) {
+						retries.computeIfAbsent(appids.get(i), k -> new ArrayList<>()).add(objects.get(i));
+					}
+				}
+				logger.debug("Client bulk write failed for {} of {} operations, writing them again per app: {}",
+						retries.values().stream().mapToInt(List::size).sum(), ops.size(), e.getMessage());
+				// the permits are re-entrant, the retries don't wait for them again
+				retries.forEach(retry);
+				return e.getPartialResult();
+			}
+		}
+	}
+
+	private ClientBulkWriteResult clientBulkWrite(String appid, List<ClientNamespacedWriteModel> ops) {
+		// verbose results are only needed for updating the materialized counters
+		ClientBulkWriteOptions options = ClientBulkWriteOptions.clientBulkWriteOptions().
+				ordered(isOrdered()).verboseResults(MongoDBCounters.isMaterialized());
+		// the driver splits the command into batches below the server's message size limit
+		return MongoDBResilience.execute(cluster(appid), () -> MongoDBUtils.getMongoClient(appid).bulkWrite(ops, options));
+	}
+
 	/////////////////////////////////////////////
 	//				MISC FUNCTIONS
 	/////////////////////////////////////////////
 
-	private <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter, boolean setNullFields) {
-		return toRow(so, filter, setNullFields, false);
+	private <P extends ParaObject> Document toRow(String appid, P so, Class<? extends Annotation> filter,
+			boolean setNullFields) {
+		return toRow(appid, so, filter, setNullFields, false);
 	}
 
+	/**
+	 * Converts an object to a document. The per-type policies are looked up with the app the object is written to,
+	 * because objects passed to the update methods don't always have their appid set.
+	 */
 	@SuppressWarnings("unchecked")
-	private <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter,
+	private <P extends ParaObject> Document toRow(String appid, P so, Class<? extends Annotation> filter,
 			boolean setNullFields, boolean setMongoId) {
 		Document row = new Document();
 		if (so == null) {
 			return row;
 		}
+		int compressionThreshold = MongoDBCompression.getThreshold(appid, so.getType());
 		// field values will be stored as they are - object structure and types will be preserved
 		for (Entry<String, Object> entry : ParaObjectUtils.getAnnotatedFields(so, filter, false).entrySet()) {
 			Object value = entry.getValue();
 			if (value != null && (!StringUtils.isBlank(value.toString()) || setNullFields)) {
 				// "id" in ParaObject is translated to "_ID" mongodb
 				if (entry.getKey().equals(Config._ID)) {
-					row.put(ID, value.toString());
+					row.put(ID, MongoDBUtils.toStoredId(value.toString()));
 				} else {
+					String field = sanitizeField(entry.getKey());
 					if (value instanceof Map) {
-						row.put(sanitizeField(entry.getKey()), sanitizeFields((Map<String, Object>) value));
+						row.put(field, MongoDBCompression.compress(field,
+								sanitizeFields((Map<String, Object>) value), compressionThreshold));
 					} else {
-						row.put(sanitizeField(entry.getKey()), value);
+						row.put(field, value);
 					}
 				}
-				if (setMongoId) {
-					// we add the native MongoDB id which will later be used for pagination and sorting
-					row.put(OBJECT_ID, MongoDBUtils.generateNewId());
-				}
+			}
+		}
+		if (setMongoId && MongoDBUtils.getSchemaVersion() < 2) {
+			// we add the native MongoDB id which will later be used for pagination and sorting
+			row.put(OBJECT_ID, MongoDBUtils.generateNewId());
+		}
+		if (setMongoId) {
+			// objects with a TTL are removed automatically by the server after this date
+			Date expiresAt = MongoDBUtils.getExpiryDate(appid, so.getType());
+			if (expiresAt != null) {
+				row.put(MongoDBUtils.EXPIRES_AT, expiresAt);
 			}
 		}
 		return row;
@@ -392,12 +1358,18 @@ public class MongoDBDAO implements DAO {
 			return Collections.emptyMap();
 		}
 		Map<String, Object> props = new HashMap<String, Object>();
+		// schema v2 doesn't use _ObjectId, documents which haven't been migrated yet still have it
+		boolean v2 = MongoDBUtils.getSchemaVersion() >= 2;
 		for (Entry<String, Object> col : row.entrySet()) {
 			Object value = col.getValue();
+			if (MongoDBCompression.isCompressed(value)) {
+				value = MongoDBCompression.decompress(value);
+			}
 			// "_ID" mongodb is translated to "id" in ParaObject
 			if (col.getKey().equals(ID)) {
-				props.put(Config._ID, value);
-			} else {
+				props.put(Config._ID, MongoDBUtils.fromStoredId(value));
+			} else if (!col.getKey().equals(MongoDBUtils.EXPIRES_AT) && !col.getKey().equals(MongoDBArchive.PROMOTED_AT) &&
+					(!col.getKey().equals(OBJECT_ID) || !v2)) {
 				if (value instanceof Map) {
 					props.put(desanitizeField(col.getKey()), desanitizeFields((Map<String, Object>) value));
 				} else {
@@ -408,6 +1380,98 @@ public class MongoDBDAO implements DAO {
 		return props;
 	}
 
+	/**
+	 * Returns a filter matching a single document by id. If {@code appid} is part of the shard key,
+	 * it is included in the filter so that {@code mongos} can route the operation to a single shard.
+	 */
+	private Bson keyFilter(String appid, String key) {
+		Bson idFilter = MongoDBUtils.isCompactId(key) ?
+				// until the table is migrated, the object may still be stored with a string id
+				Filters.in(ID, new ObjectId(key), key) : Filters.eq(ID, key);
+		if (MongoDBUtils.isAppidInShardKey()) {
+			return Filters.and(Filters.eq(Config._APPID, appid), idFilter);
+		}
+		return idFilter;
+	}
+
+	/**
+	 * Returns a filter matching the exact value stored in {@code _id}, without the string fallback for ObjectIds.
+	 */
+	private Bson storedKeyFilter(String appid, Object storedId) {
+		if (MongoDBUtils.isAppidInShardKey()) {
+			return Filters.and(Filters.eq(Config._APPID, appid), Filters.eq(ID, storedId));
+		}
+		return Filters.eq(ID, storedId);
+	}
+
+	/**
+	 * Returns the filter for an upsert. On sharded tables an upsert must match the shard key exactly,
+	 * so the fallback to string ids is left out - tables should be migrated before enabling compact ids.
+	 */
+	private Bson upsertFilter(String appid, String key) {
+		if (MongoDBUtils.isShardingEnabled()) {
+			return storedKeyFilter(appid, MongoDBUtils.toStoredId(key));
+		}
+		return keyFilter(appid, key);
+	}
+
+	private static String idOf(RawBsonDocument doc) {
+		BsonValue id = doc.get(ID);
+		return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.asString().getValue();
+	}
+
+	private MongoCollection<RawBsonDocument> getRawTable(String appid) {
+		return getTable(appid).withDocumentClass(RawBsonDocument.class);
+	}
+
+	/**
+	 * Excludes objects which have expired but haven't been removed by the TTL monitor yet.
+	 */
+	private Bson notExpired(Bson filter) {
+		if (MongoDBUtils.isExpiredFilteredOnRead()) {
+			return Filters.and(filter, Filters.not(Filters.lte(MongoDBUtils.EXPIRES_AT, new Date())));
+		}
+		return filter;
+	}
+
+	private Bson keysFilter(String appid, List<String> keys) {
+		List<?> ids = keys;
+		if (MongoDBUtils.isCompactIdsEnabled()) {
+			List<Object> storedIds = new ArrayList<>(keys.size() * 2);
+			for (String key : keys) {
+				if (MongoDBUtils.isCompactId(key)) {
+					storedIds.add(new ObjectId(key));
+				}
+				storedIds.add(key);
+			}
+			ids = storedIds;
+		}
+		if (MongoDBUtils.isAppidInShardKey()) {
+			return Filters.and(Filters.eq(Config._APPID, appid), Filters.in(ID, ids));
+		}
+		return Filters.in(ID, ids);
+	}
+
+	/**
+	 * On sharded clusters bulk writes are unordered, which lets {@code mongos} split each batch
+	 * by shard and send the parts to all shards in parallel. With compact ids they are unordered too,
+	 * so that a write to an object with a legacy string id doesn't stop the rest of the batch.
+	 */
+	private BulkWriteOptions bulkWriteOptions() {
+		return new BulkWriteOptions().ordered(isOrdered());
+	}
+
+	private boolean isOrdered() {
+		return !MongoDBUtils.isShardingEnabled() && !MongoDBUtils.isCompactIdsEnabled();
+	}
+
+	/**
+	 * Returns the connection profile of an app, which also names the circuit breaker for its cluster.
+	 */
+	private static String cluster(String appid) {
+		return MongoDBRouting.getProfile(appid);
+	}
+
 	private static void throwIfNecessary(Throwable t) {
 		if (t != null && Para.getConfig().exceptionOnWriteErrorsEnabled()) {
 			throw new RuntimeException("DAO write operation failed!", t);
@@ -439,6 +1503,11 @@ public class MongoDBDAO implements DAO {
 		return fieldName;
 	}
 
+	@SuppressWarnings("unchecked")
+	private Object sanitizeValue(Object value) {
+		return (value instanceof Map) ? sanitizeFields((Map<String, Object>) value) : value;
+	}
+
 		@SuppressWarnings("unchecked")
 	Map<String, Object> sanitizeFields(Map<String, Object> row) {
 		if (row != null) {
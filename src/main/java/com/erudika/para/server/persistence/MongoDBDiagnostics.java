@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs slow MongoDB operations. Enabled with {@code para.mongodb.slow_operation_threshold_ms}.
+ * Each command slower than the threshold is logged with its app, the shape of its filter (values removed, the
+ * filter of the first statement for bulk writes) and the number of documents it touched. A fraction of {@code find}
+ * commands, set by {@code para.mongodb.explain_sample_rate}, keeps its whole filter, and those which turn out to be
+ * slow are also explained in the background and flagged if the winning plan is a collection scan.
+ */
+final class MongoDBDiagnostics implements CommandListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBDiagnostics.class);
+	private static final Set<String> MONITORED_COMMANDS = Set.of("find", "getMore", "insert", "update", "delete",
+			"aggregate", "count", "distinct", "findAndModify", "bulkWrite");
+	private static final Map<String, String> PAYLOADS = Map.of("insert", "documents", "update", "updates",
+			"delete", "deletes", "bulkWrite", "ops");
+	private static final Map<String, String> STATEMENT_FILTERS = Map.of("updates", "q", "deletes", "q", "ops", "filter");
+	private static final List<String> FIND_OPTIONS = List.of("sort", "skip", "limit", "hint", "projection");
+
+	private final String profile;
+	private final long thresholdMs;
+	private final double explainSampleRate;
+	private final Map<Integer, Operation> started = new ConcurrentHashMap<>();
+
+	MongoDBDiagnostics(String profile) {
+		this.profile = profile;
+		this.thresholdMs = getThresholdMs();
+		this.explainSampleRate = NumberUtils.toDouble(MongoDBUtils.getConfigParam("explain_sample_rate", "0"), 0);
+	}
+
+	static boolean isEnabled() {
+		return getThresholdMs() > 0;
+	}
+
+	private static long getThresholdMs() {
+		return MongoDBUtils.getConfigInt("slow_operation_threshold_ms", 0);
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		String name = event.getCommandName();
+		if (!MONITORED_COMMANDS.contains(name)) {
+			return;
+		}
+		// the command is only valid for the duration of this call, so the parts needed later are taken here, but
+		// only the shape of the filter is kept, not its values, which may be long lists of ids in nearly every command
+		BsonDocument command = event.getCommand();
+		// a getMore names its cursor, the collection is in a field of its own
+		BsonValue target = command.get("getMore".equals(name) ? "collection" : name);
+		String payload = PAYLOADS.get(name);
+		BsonValue docs = (payload == null) ? null : command.get(payload);
+		BsonValue filter = command.containsKey("filter") ? command.get("filter") : command.get("query");
+		if (filter == null && payload != null && STATEMENT_FILTERS.containsKey(payload) &&
+				docs != null && docs.isArray() && !docs.asArray().isEmpty() && docs.asArray().get(0).isDocument()) {
+			// bulk writes have a filter per statement, the first one stands for the rest
+			filter = docs.asArray().get(0).asDocument().get(STATEMENT_FILTERS.get(payload));
+		}
+		Operation op = new Operation();
+		op.collection = (target != null && target.isString()) ? target.asString().getValue() : "";
+		op.documents = (docs != null && docs.isArray()) ? docs.asArray().size() : 0;
+		op.shape = (filter != null && filter.isDocument()) ? shapeOf(filter.asDocument()) : null;
+		if ("find".equals(name) && op.shape != null && explainSampleRate > 0 &&
+				ThreadLocalRandom.current().nextDouble() < explainSampleRate) {
+			// sampled before it's known to be slow, the full filter is needed to explain it
+			op.filter = filter.asDocument().clone();
+			// without its sort and limit, a page read would always be explained as a collection scan
+			op.findOptions = new BsonDocument();
+			for (String option : FIND_OPTIONS) {
+				BsonValue value = command.get(option);
+				if (value != null) {
+					op.findOptions.put(option, value.isDocument() ? value.asDocument().clone() : value);
+				}
+			}
+		}
+		started.put(event.getRequestId(), op);
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		Operation op = started.remove(event.getRequestId());
+		long elapsedMs = event.getElapsedTime(TimeUnit.MILLISECONDS);
+		if (op == null || elapsedMs < thresholdMs) {
+			return;
+		}
+		int returned = 0;
+		BsonValue cursor = event.getResponse().get("cursor");
+		if (cursor != null && cursor.isDocument()) {
+			BsonValue batch = cursor.asDocument().containsKey("firstBatch") ?
+					cursor.asDocument().get("firstBatch") : cursor.asDocument().get("nextBatch");
+			returned = (batch != null && batch.isArray()) ? batch.asArray().size() : 0;
+		}
+		String shape = (op.shape == null) ? "{}" : op.shape.toJson();
+		logger.warn("Slow MongoDB operation: {} on app '{}' took {}ms, filter: {}, documents sent: {}, returned: {}",
+				event.getCommandName(), appidOf(op.collection), elapsedMs, shape, op.documents, returned);
+		if (op.filter != null) {
+			explain(event.getDatabaseName(), op, shape);
+		}
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		started.remove(event.getRequestId());
+	}
+
+	private void explain(String database, Operation op, String shape) {
+		BsonDocument findCommand = new BsonDocument("find", new BsonString(op.collection)).append("filter", op.filter);
+		findCommand.putAll(op.findOptions);
+		MongoDBExecutors.invokeLater(profile, () -> {
+			try {
+				// the database of the command, on the client of the profile which ran it
+				Document plan = MongoDBRouting.getMongoClient(profile).getDatabase(database).
+						runCommand(new Document("explain", findCommand).append("verbosity", "queryPlanner"));
+				if (plan.toJson().contains("COLLSCAN")) {
+					logger.warn("Collection scan on app '{}' for filter {} - consider adding an index.",
+							appidOf(op.collection), shape);
+				}
+			} catch (Exception e) {
+				logger.debug("Failed to explain query: {}", e.getMessage());
+			}
+		});
+	}
+
+	private static String appidOf(String collection) {
+		return StringUtils.removeStart(collection, Config.PARA + "-");
+	}
+
+	/**
+	 * Returns a copy of a filter with all values replaced by '?' and all operators and field names kept.
+	 */
+	static BsonDocument shapeOf(BsonDocument filter) {
+		BsonDocument shape = new BsonDocument();
+		for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+			shape.put(entry.getKey(), shapeOf(entry.getValue()));
+		}
+		return shape;
+	}
+
+	private static BsonValue shapeOf(BsonValue value) {
+		if (value.isDocument()) {
+			return shapeOf(value.asDocument());
+		} else if (value.isArray() && !value.asArray().isEmpty() && value.asArray().get(0).isDocument()) {
+			// e.g. $and, $or - keep the shape of each clause
+			BsonArray clauses = new BsonArray();
+			value.asArray().forEach(v -> clauses.add(shapeOf(v)));
+			return clauses;
+		}
+		return new BsonString("?");
+	}
+
+	/**
+	 * A command in progress.
+	 */
+	private static final class Operation {
+		private String collection;
+		private int documents;
+		private BsonDocument shape;
+		private BsonDocument filter;
+		private BsonDocument findOptions;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking DAO work, e.g. the chunks of a large batch, in parallel. Tasks run on virtual threads,
+ * or on a fixed pool of platform threads if {@code para.mongodb.virtual_threads_enabled} is {@code false}.
+ * <p>
+ * The number of fan-out and background tasks running at once is limited by a semaphore per connection profile
+ * (see {@link MongoDBRouting}), with {@code para.mongodb.max_concurrent_tasks} permits, by default the size of that
+ * profile's connection pool, so that a few large batches can't take all connections away from the rest of the
+ * application. Each semaphore is created when its profile is first used, after its client has connected. Waiting for a
+ * permit costs almost nothing on a virtual thread, so thousands of tasks can be queued. Fan-out started
+ * from within a task runs on the task's own thread, so nested batches never wait for permits held by
+ * their parents.
+ */
+final class MongoDBExecutors {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBExecutors.class);
+	private static final ThreadLocal<Boolean> IN_TASK = new ThreadLocal<>();
+	private static final Map<String, Semaphore> SEMAPHORES = new ConcurrentHashMap<>();
+	private static final ExecutorService EXECUTOR = newExecutor();
+
+	private MongoDBExecutors() { }
+
+	/**
+	 * Applies a task to each item in parallel and waits for all of them to complete.
+	 * A single item is processed on the calling thread, and so are all items if the caller is itself a task.
+	 * @param <T> item type
+	 * @param <R> result type
+	 * @param cluster the connection profile the tasks use
+	 * @param items items
+	 * @param task a blocking task
+	 * @return the results, in the order of the items
+	 */
+	static <T, R> List<R> invokeAll(String cluster, List<T> items, Function<T, R> task) {
+		return invokeAll(items, item -> cluster, task);
+	}
+
+	/**
+	 * Applies a task to each item in parallel, like {@link #invokeAll(String, List, Function)}, for items which
+	 * may use different connection profiles, e.g. the batches of many apps.
+	 * @param <T> item type
+	 * @param <R> result type
+	 * @param items items
+	 * @param clusterOf returns the connection profile an item uses
+	 * @param task a blocking task
+	 * @return the results, in the order of the items
+	 */
+	static <T, R> List<R> invokeAll(List<T> items, Function<T, String> clusterOf, Function<T, R> task) {
+		List<R> results = new ArrayList<>(items.size());
+		if (items.size() == 1 || IN_TASK.get() != null) {
+			for (T item : items) {
+				results.add(task.apply(item));
+			}
+			return results;
+		}
+		List<Future<R>> futures = new ArrayList<>(items.size());
+		for (T item : items) {
+			futures.add(EXECUTOR.submit(() -> withPermit(clusterOf.apply(item), () -> task.apply(item))));
+		}
+		RuntimeException error = null;
+		for (Future<R> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				futures.forEach(f -> f.cancel(true));
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				// wait for the other tasks anyway, so that no work is left running in the background
+				if (error == null) {
+					error = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new IllegalStateException(e);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return results;
+	}
+
+	/**
+	 * Runs a task in the background, when a permit is available.
+	 * @param cluster the connection profile the task uses
+	 * @param task a task
+	 */
+	static void invokeLater(String cluster, Runnable task) {
+		EXECUTOR.execute(() -> withPermit(cluster, () -> {
+			task.run();
+			return null;
+		}));
+	}
+
+	/**
+	 * Runs a latency sensitive call asynchronously, without waiting for a permit. Used for hedged reads,
+	 * which stand in for a call the caller would otherwise make on its own thread.
+	 * @param <T> result type
+	 * @param call a blocking call
+	 * @return a future result
+	 */
+	static <T> CompletableFuture<T> supplyAsync(Supplier<T> call) {
+		return CompletableFuture.supplyAsync(call, EXECUTOR);
+	}
+
+	/**
+	 * Splits a list into consecutive chunks.
+	 * @param <T> item type
+	 * @param list a list
+	 * @param chunkSize max. chunk size
+	 * @return a list of sublists
+	 */
+	static <T> List<List<T>> partition(List<T> list, int chunkSize) {
+		int size = Math.max(1, chunkSize);
+		List<List<T>> chunks = new ArrayList<>(list.size() / size + 1);
+		for (int i = 0; i < list.size(); i += size) {
+			chunks.add(list.subList(i, Math.min(list.size(), i + size)));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Returns the number of tasks allowed to run at once on a connection profile.
+	 * @param cluster the connection profile
+	 * @return the number of permits
+	 */
+	static int getPermits(String cluster) {
+		return getMaxConcurrentTasks(cluster);
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a permit on a connection profile.
+	 * @param cluster the connection profile
+	 * @return an estimate of the number of waiting tasks
+	 */
+	static int getQueueLength(String cluster) {
+		Semaphore semaphore = SEMAPHORES.get(cluster);
+		return (semaphore == null) ? 0 : semaphore.getQueueLength();
+	}
+
+	private static <R> R withPermit(String cluster, Supplier<R> task) {
+		Semaphore semaphore = SEMAPHORES.computeIfAbsent(cluster, c -> new Semaphore(getMaxConcurrentTasks(c), true));
+		try {
+			semaphore.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		IN_TASK.set(Boolean.TRUE);
+		try {
+			return task.get();
+		} finally {
+			IN_TASK.remove();
+			semaphore.release();
+		}
+	}
+
+	private static int getMaxConcurrentTasks(String cluster) {
+		int max = MongoDBUtils.getConfigInt("max_concurrent_tasks", 0);
+		if (max <= 0) {
+			// connects the profile first, so that the pool size includes any maxPoolSize from its URI
+			max = MongoDBUtils.getConnectionPoolSize(cluster);
+		}
+		// a pool size of 0 means no limit
+		return (max <= 0) ? Integer.MAX_VALUE : max;
+	}
+
+	private static ExecutorService newExecutor() {
+		if (MongoDBUtils.getConfigBoolean("virtual_threads_enabled", true)) {
+			return Executors.newVirtualThreadPerTaskExecutor();
+		}
+		// the clients aren't connected yet, so the pool is sized from the config (the driver's default pool size is 100),
+		// and hedged reads bypass the permits, so the pool gets a few extra threads for them
+		int perProfile = MongoDBUtils.getConfigInt("max_concurrent_tasks", MongoDBUtils.getConfigInt("connection_pool_size", 0));
+		int profiles = 1 + StringUtils.split(MongoDBUtils.getConfigParam("connection_profiles", ""), ", ").length;
+		int threads = Math.min(((perProfile <= 0) ? 100 : perProfile) * profiles, 256) + Runtime.getRuntime().availableProcessors();
+		logger.info("Using a pool of {} platform threads for parallel DAO operations.", threads);
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "para-mongodb-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		return Executors.newFixedThreadPool(threads, factory);
+	}
+}
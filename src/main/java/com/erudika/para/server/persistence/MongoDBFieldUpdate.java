@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Changes to individual fields of an object, for {@link MongoDBDAO#updateFields(String, String, MongoDBFieldUpdate)}.
+ * The changes are applied atomically on the server, without reading the object first, so counters can be
+ * incremented concurrently from many nodes. Fields are given as paths, where a '.' separates the keys of
+ * nested maps, e.g. {@code "properties.views"}. Paths into maps which may be stored compressed are rejected.
+ * Increments and appends aren't retried after a network error, except by the driver's retryable writes,
+ * so that they are never applied twice. Example:
+ * <pre>
+ * MongoDBFieldUpdate.create().inc("votes", 1).set("properties.lastVoter", userId)
+ * </pre>
+ */
+public final class MongoDBFieldUpdate {
+
+	private final Map<String, Map<String, Object>> operations = new LinkedHashMap<>();
+	private final Set<String> paths = new HashSet<>();
+
+	private MongoDBFieldUpdate() { }
+
+	/**
+	 * Creates an empty update.
+	 * @return a new update
+	 */
+	public static MongoDBFieldUpdate create() {
+		return new MongoDBFieldUpdate();
+	}
+
+	/**
+	 * Sets a field to a value.
+	 * @param path field path
+	 * @param value new value
+	 * @return this update
+	 */
+	public MongoDBFieldUpdate set(String path, Object value) {
+		return add("$set", path, value);
+	}
+
+	/**
+	 * Removes a field.
+	 * @param path field path
+	 * @return this update
+	 */
+	public MongoDBFieldUpdate unset(String path) {
+		return add("$unset", path, "");
+	}
+
+	/**
+	 * Adds a number to a field. A missing field is created with that value.
+	 * @param path field path
+	 * @param amount the increment, can be negative
+	 * @return this update
+	 */
+	public MongoDBFieldUpdate inc(String path, Number amount) {
+		if (amount == null) {
+			throw new IllegalArgumentException("No increment given for '" + path + "'.");
+		}
+		return add("$inc", path, amount);
+	}
+
+	/**
+	 * Appends a value to a list field. A missing field is created as a list.
+	 * @param path field path
+	 * @param value the value to append
+	 * @return this update
+	 */
+	public MongoDBFieldUpdate push(String path, Object value) {
+		return add("$push", path, value);
+	}
+
+	/**
+	 * Returns true if there are no changes.
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Returns true if applying the changes twice has the same effect as applying them once.
+	 * @return false if a field is incremented or appended to
+	 */
+	boolean isIdempotent() {
+		return !operations.containsKey("$inc") && !operations.containsKey("$push");
+	}
+
+	/**
+	 * Returns the changes.
+	 * @return a map of update operator to a map of field path to value
+	 */
+	Map<String, Map<String, Object>> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Returns true if a field is changed.
+	 * @param path field path
+	 * @return true if the path was added
+	 */
+	boolean contains(String path) {
+		return paths.contains(path);
+	}
+
+	private MongoDBFieldUpdate add(String operator, String path, Object value) {
+		if (StringUtils.isBlank(path) || StringUtils.startsWith(path, ".") || StringUtils.endsWith(path, ".") ||
+				StringUtils.contains(path, "..")) {
+			throw new IllegalArgumentException("Invalid field path '" + path + "'.");
+		}
+		// the server rejects an update which changes the same field twice
+		if (!paths.add(path)) {
+			throw new IllegalArgumentException("Field '" + path + "' is already changed.");
+		}
+		operations.computeIfAbsent(operator, k -> new LinkedHashMap<>()).put(path, value);
+		return this;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import com.mongodb.client.model.Filters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import org.bson.conversions.Bson;
+
+/**
+ * Selects objects in an app by type, parent, creator and time, for
+ * {@link MongoDBDAO#deleteByFilter(String, MongoDBFilter)} and
+ * {@link MongoDBDAO#updateByFilter(String, MongoDBFilter, java.util.Map)}.
+ * All conditions must match. A filter without conditions is rejected, so that a whole app can't be
+ * deleted by mistake. Example:
+ * <pre>
+ * MongoDBFilter.create().type("comment").parentid(post.getId()).timestampBefore(cutoff)
+ * </pre>
+ */
+public final class MongoDBFilter {
+
+	private final List<Bson> conditions = new ArrayList<>();
+	private String type;
+
+	private MongoDBFilter() { }
+
+	/**
+	 * Creates an empty filter.
+	 * @return a new filter
+	 */
+	public static MongoDBFilter create() {
+		return new MongoDBFilter();
+	}
+
+	/**
+	 * Matches objects of any of the given types.
+	 * @param types one or more types
+	 * @return this filter
+	 */
+	public MongoDBFilter type(String... types) {
+		if (types != null && types.length == 1) {
+			type = types[0];
+		}
+		return in(Config._TYPE, types);
+	}
+
+	/**
+	 * Matches objects with any of the given parent ids.
+	 * @param parentids one or more parent ids
+	 * @return this filter
+	 */
+	public MongoDBFilter parentid(String... parentids) {
+		return in(Config._PARENTID, parentids);
+	}
+
+	/**
+	 * Matches objects created by any of the given users.
+	 * @param creatorids one or more user ids
+	 * @return this filter
+	 */
+	public MongoDBFilter creatorid(String... creatorids) {
+		return in(Config._CREATORID, creatorids);
+	}
+
+	/**
+	 * Matches objects created at or after a time.
+	 * @param timestamp time in milliseconds
+	 * @return this filter
+	 */
+	public MongoDBFilter timestampFrom(long timestamp) {
+		conditions.add(Filters.gte(Config._TIMESTAMP, timestamp));
+		return this;
+	}
+
+	/**
+	 * Matches objects created before a time.
+	 * @param timestamp time in milliseconds
+	 * @return this filter
+	 */
+	public MongoDBFilter timestampBefore(long timestamp) {
+		conditions.add(Filters.lt(Config._TIMESTAMP, timestamp));
+		return this;
+	}
+
+	/**
+	 * Matches objects last updated at or after a time.
+	 * @param timestamp time in milliseconds
+	 * @return this filter
+	 */
+	public MongoDBFilter updatedFrom(long timestamp) {
+		conditions.add(Filters.gte(Config._UPDATED, timestamp));
+		return this;
+	}
+
+	/**
+	 * Matches objects last updated before a time. Objects which were never updated don't match.
+	 * @param timestamp time in milliseconds
+	 * @return this filter
+	 */
+	public MongoDBFilter updatedBefore(long timestamp) {
+		conditions.add(Filters.lt(Config._UPDATED, timestamp));
+		return this;
+	}
+
+	/**
+	 * Returns the type, if the filter matches exactly one type.
+	 * @return the type or null
+	 */
+	String getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the MongoDB filter for the objects of an app.
+	 * @param appid app identifier - apps may share a table, so the filter always includes it
+	 * @return a filter
+	 */
+	Bson toBson(String appid) {
+		if (conditions.isEmpty()) {
+			throw new IllegalArgumentException("A filter must have at least one condition.");
+		}
+		List<Bson> all = new ArrayList<>(conditions.size() + 1);
+		all.add(Filters.eq(Config._APPID, appid));
+		all.addAll(conditions);
+		return Filters.and(all);
+	}
+
+	private MongoDBFilter in(String field, String... values) {
+		List<String> list = (values == null) ? List.of() : Arrays.stream(values).filter(Objects::nonNull).toList();
+		if (list.isEmpty()) {
+			throw new IllegalArgumentException("No values given for '" + field + "'.");
+		}
+		conditions.add(list.size() == 1 ? Filters.eq(field, list.get(0)) : Filters.in(field, list));
+		return this;
+	}
+}
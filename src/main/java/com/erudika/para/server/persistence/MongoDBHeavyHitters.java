@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the hottest keys and apps, by number of requests and by document bytes read.
+ * Enabled with {@code para.mongodb.heavy_hitters_enabled = true}. Counts are estimated with a
+ * count-min sketch and the top {@code para.mongodb.heavy_hitters_top_k} entries are kept per metric.
+ * All updates are lock-free. Counts are reset every {@code para.mongodb.heavy_hitters_window_sec}
+ * seconds (default 300), so that the snapshot reflects recent load. The settings are read again every few seconds
+ * and on {@link #reset()}, not on every request.
+ */
+public final class MongoDBHeavyHitters {
+
+	private static final int SKETCH_WIDTH = 4096;
+	private static final int SKETCH_DEPTH = 4;
+	// one independent hash function per row of the sketch
+	private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+	private static final long SETTINGS_TTL_MS = TimeUnit.SECONDS.toMillis(10);
+	private static final Map<String, Tracker> TRACKERS = new LinkedHashMap<>();
+	private static final AtomicLong WINDOW_START = new AtomicLong(System.currentTimeMillis());
+	private static final Tracker KEYS_BY_REQUESTS = tracker("keys_by_requests");
+	private static final Tracker KEYS_BY_BYTES = tracker("keys_by_bytes");
+	private static final Tracker APPS_BY_REQUESTS = tracker("apps_by_requests");
+	private static final Tracker APPS_BY_BYTES = tracker("apps_by_bytes");
+	private static volatile Settings settings = new Settings(false, 1, 0, 0);
+
+	private MongoDBHeavyHitters() { }
+
+	/**
+	 * Returns true if tracking is enabled.
+	 * @return the value of {@code para.mongodb.heavy_hitters_enabled}
+	 */
+	public static boolean isEnabled() {
+		return getSettings().enabled();
+	}
+
+	/**
+	 * Returns the current top entries for each metric: {@code keys_by_requests}, {@code keys_by_bytes},
+	 * {@code apps_by_requests} and {@code apps_by_bytes}. Keys are in the form {@code "operation appid/key"}
+	 * and apps in the form {@code "operation appid"}. Counts are estimates and may be slightly too high.
+	 * @return a map of metric name to a map of entry to count, sorted by count in descending order
+	 */
+	public static Map<String, Map<String, Long>> snapshot() {
+		Map<String, Map<String, Long>> snapshot = new LinkedHashMap<>(TRACKERS.size());
+		TRACKERS.forEach((name, tracker) -> snapshot.put(name, tracker.top()));
+		return snapshot;
+	}
+
+	/**
+	 * Clears all counts.
+	 */
+	public static void reset() {
+		settings = Settings.load();
+		WINDOW_START.set(System.currentTimeMillis());
+		TRACKERS.values().forEach(Tracker::clear);
+	}
+
+	/**
+	 * Records a request.
+	 * @param operation DAO operation, e.g. "read"
+	 * @param appid app identifier
+	 * @param key object id
+	 * @param bytes size of the document in bytes, if known
+	 */
+	static void record(String operation, String appid, String key, long bytes) {
+		Settings current = getSettings();
+		if (!current.enabled()) {
+			return;
+		}
+		rollWindow(current);
+		String app = operation + " " + appid;
+		String appKey = app + "/" + key;
+		KEYS_BY_REQUESTS.add(appKey, 1, current.topK());
+		APPS_BY_REQUESTS.add(app, 1, current.topK());
+		if (bytes > 0) {
+			KEYS_BY_BYTES.add(appKey, bytes, current.topK());
+			APPS_BY_BYTES.add(app, bytes, current.topK());
+		}
+	}
+
+	static void record(String operation, String appid, Collection<String> keys) {
+		if (isEnabled()) {
+			keys.forEach(key -> record(operation, appid, key, 0));
+		}
+	}
+
+	private static Settings getSettings() {
+		Settings current = settings;
+		if (System.currentTimeMillis() - current.loadedAt() > SETTINGS_TTL_MS) {
+			current = Settings.load();
+			settings = current;
+		}
+		return current;
+	}
+
+	private static void rollWindow(Settings current) {
+		long start = WINDOW_START.get();
+		long now = System.currentTimeMillis();
+		if (current.windowMs() > 0 && now - start > current.windowMs() && WINDOW_START.compareAndSet(start, now)) {
+			TRACKERS.values().forEach(Tracker::clear);
+		}
+	}
+
+	private static Tracker tracker(String name) {
+		Tracker tracker = new Tracker();
+		TRACKERS.put(name, tracker);
+		return tracker;
+	}
+
+	private record Settings(boolean enabled, int topK, long windowMs, long loadedAt) {
+		static Settings load() {
+			return new Settings(MongoDBUtils.getConfigBoolean("heavy_hitters_enabled", false),
+					Math.max(1, MongoDBUtils.getConfigInt("heavy_hitters_top_k", 20)),
+					TimeUnit.SECONDS.toMillis(MongoDBUtils.getConfigInt("heavy_hitters_window_sec", 300)),
+					System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * A count-min sketch with a set of top-k candidates.
+	 */
+	private static final class Tracker {
+
+		private final AtomicLongArray sketch = new AtomicLongArray(SKETCH_WIDTH * SKETCH_DEPTH);
+		private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+		private final AtomicBoolean pruning = new AtomicBoolean();
+		private volatile long minTopCount;
+
+		void add(String key, long delta, int k) {
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < SKETCH_DEPTH; row++) {
+				int col = (int) Long.remainderUnsigned(hash(key, SEEDS[row]), SKETCH_WIDTH);
+				estimate = Math.min(estimate, sketch.addAndGet(row * SKETCH_WIDTH + col, delta));
+			}
+			if (estimate > minTopCount || candidates.size() < k) {
+				candidates.put(key, estimate);
+				if (candidates.size() > 2 * k) {
+					prune(k);
+				}
+			}
+		}
+
+		private void prune(int k) {
+			// only one thread prunes at a time, the others carry on without waiting
+			if (pruning.compareAndSet(false, true)) {
+				try {
+					Map<String, Long> top = top(k);
+					candidates.keySet().retainAll(top.keySet());
+					minTopCount = top.isEmpty() ? 0 : top.values().stream().mapToLong(Long::longValue).min().orElse(0);
+				} finally {
+					pruning.set(false);
+				}
+			}
+		}
+
+		Map<String, Long> top() {
+			return top(getSettings().topK());
+		}
+
+		private Map<String, Long> top(int k) {
+			Map<String, Long> top = new LinkedHashMap<>();
+			candidates.entrySet().stream().sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())).
+					limit(k).forEachOrdered(e -> top.put(e.getKey(), e.getValue()));
+			return top;
+		}
+
+		void clear() {
+			for (int i = 0; i < sketch.length(); i++) {
+				sketch.set(i, 0);
+			}
+			candidates.clear();
+			minTopCount = 0;
+		}
+
+		private static long hash(String key, long seed) {
+			// a seeded 64-bit hash of all chars, so that keys which collide in one row don't collide in the others
+			long h = seed ^ key.length();
+			for (int i = 0; i < key.length(); i++) {
+				h = (h ^ key.charAt(i)) * 0x100000001B3L;
+			}
+			// murmur3 64-bit finalizer
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
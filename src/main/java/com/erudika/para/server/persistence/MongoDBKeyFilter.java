@@ -0,0 +1,458 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Bloom filter of the ids in each table, which lets probe reads of ids that don't exist return without a query.
+ * Enabled with {@code para.mongodb.key_filter_enabled = true}. A filter is built by scanning the ids of a table
+ * (and its archive) when the table is first read, or by the bootstrap, and is rebuilt every
+ * {@code para.mongodb.key_filter_rebuild_min} minutes (default 60), which also clears the ids of deleted objects.
+ * It is rebuilt sooner once more than a tenth of its ids were deleted.
+ * <p>
+ * Objects created by this node are added before they are written, and objects created by other nodes are added
+ * from a change stream on the database, which sees them only after they are committed. So an object created on
+ * another node moments ago may be missed, and the filter is only used by {@link MongoDBDAO#probe(String, String)}
+ * and {@link MongoDBDAO#probeAll(String, java.util.List)}, unless {@code para.mongodb.key_filter_all_reads = true},
+ * which is only safe if this node is the only one writing to the database. Without change streams (standalone
+ * servers), no filters are used. If the change stream fails, all filters of that cluster are dropped until they are
+ * rebuilt. Tables with more than {@code para.mongodb.key_filter_max_keys} ids don't get a filter.
+ * <p>
+ * An id added before its object is written may be passed by the scan of a rebuild before the object exists, so the
+ * ids added by this node in the last minute are also put in a new filter when it replaces the old one.
+ */
+final class MongoDBKeyFilter {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBKeyFilter.class);
+	private static final String ID = "_id";
+	private static final long RECENT_MS = TimeUnit.MINUTES.toMillis(1);
+	private static final Map<String, Entry> FILTERS = new ConcurrentHashMap<>();
+	private static final Map<String, AtomicLong> EPOCHS = new ConcurrentHashMap<>();
+	private static final Set<String> WATCHED = ConcurrentHashMap.newKeySet();
+
+	private MongoDBKeyFilter() { }
+
+	/**
+	 * Returns true if key filters are enabled.
+	 * @return the value of {@code para.mongodb.key_filter_enabled}
+	 */
+	static boolean isEnabled() {
+		return MongoDBUtils.getConfigBoolean("key_filter_enabled", false);
+	}
+
+	/**
+	 * Returns true if all reads, not only probe reads, skip ids which the filter rules out.
+	 * @return the value of {@code para.mongodb.key_filter_all_reads}
+	 */
+	static boolean isUsedByAllReads() {
+		return isEnabled() && MongoDBUtils.getConfigBoolean("key_filter_all_reads", false);
+	}
+
+	/**
+	 * Returns false if an object definitely doesn't exist. Starts building or rebuilding the filter if needed.
+	 * @param appid app identifier
+	 * @param key object id
+	 * @return true if the object might exist, or if there is no filter for the table yet
+	 */
+	static boolean mightContain(String appid, String key) {
+		if (!isEnabled() || StringUtils.isBlank(appid)) {
+			return true;
+		}
+		Entry entry = entry(appid);
+		BloomFilter filter = entry.ready;
+		entry.rebuildIfStale(appid);
+		return filter == null || filter.mightContain(key);
+	}
+
+	/**
+	 * Adds the id of a new object. Must be called before the object is written, so that no read can miss it.
+	 * @param appid app identifier
+	 * @param key object id
+	 */
+	static void add(String appid, String key) {
+		if (isEnabled() && !StringUtils.isBlank(appid)) {
+			entry(appid).add(key);
+		}
+	}
+
+	/**
+	 * Adds the ids of new objects.
+	 * @param appid app identifier
+	 * @param keys object ids
+	 */
+	static void add(String appid, Collection<String> keys) {
+		if (isEnabled() && !StringUtils.isBlank(appid)) {
+			Entry entry = entry(appid);
+			keys.forEach(entry::add);
+		}
+	}
+
+	/**
+	 * Drops the filter of a table, e.g. after its contents were replaced. The next read starts a rebuild.
+	 * @param appid app identifier
+	 */
+	static void invalidate(String appid) {
+		if (!StringUtils.isBlank(appid)) {
+			Entry entry = FILTERS.get(key(MongoDBRouting.getProfile(appid), MongoDBUtils.getTableNameForAppid(appid)));
+			if (entry != null) {
+				entry.drop();
+			}
+		}
+	}
+
+	/**
+	 * Builds the filter of a table, unless it's already being built.
+	 * @param appid app identifier
+	 */
+	static void build(String appid) {
+		if (isEnabled() && !StringUtils.isBlank(appid)) {
+			Entry entry = entry(appid);
+			if (entry.rebuilding.compareAndSet(false, true)) {
+				entry.rebuild(appid);
+			}
+		}
+	}
+
+	private static Entry entry(String appid) {
+		String profile = MongoDBRouting.getProfile(appid);
+		String table = MongoDBUtils.getTableNameForAppid(appid);
+		return FILTERS.computeIfAbsent(key(profile, table), k -> new Entry(profile, table));
+	}
+
+	private static String key(String profile, String table) {
+		return profile + "/" + table;
+	}
+
+	private static AtomicLong epoch(String profile) {
+		return EPOCHS.computeIfAbsent(profile, k -> new AtomicLong());
+	}
+
+	/**
+	 * Opens a change stream on the database of a profile, unless one is open, and follows it in the background.
+	 * @return true if new objects are seen by the change stream
+	 */
+	private static boolean watch(String profile) {
+		if (WATCHED.contains(profile)) {
+			return true;
+		}
+		synchronized (WATCHED) {
+			if (WATCHED.contains(profile)) {
+				return true;
+			}
+			MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+			try {
+				// only the ids are needed, not the whole inserted documents
+				cursor = MongoDBRouting.getDatabase(profile).watch(List.of(
+						Aggregates.match(Filters.in("operationType", "insert", "replace", "delete", "drop", "rename", "dropDatabase", "invalidate")),
+						Aggregates.project(Projections.include("operationType", "ns", "to", "documentKey")))).cursor();
+			} catch (Exception e) {
+				logger.warn("Key filters are disabled for profile '{}', change streams aren't available: {}", profile, e.getMessage());
+				return false;
+			}
+			WATCHED.add(profile);
+			Thread.ofPlatform().daemon().name("para-mongodb-key-filter-" + profile).start(() -> follow(profile, cursor));
+			return true;
+		}
+	}
+
+	private static void follow(String profile, MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+		try (cursor) {
+			while (true) {
+				ChangeStreamDocument<Document> event = cursor.next();
+				OperationType type = event.getOperationType();
+				String table = (event.getNamespace() == null) ? null : event.getNamespace().getCollectionName();
+				Entry entry = (table == null) ? null : FILTERS.get(key(profile, table));
+				if (type == OperationType.INSERT || type == OperationType.REPLACE) {
+					if (entry != null && event.getDocumentKey() != null) {
+						entry.put(toKey(event.getDocumentKey().get(ID)));
+					}
+				} else if (type == OperationType.DELETE) {
+					if (entry != null) {
+						entry.deletes.incrementAndGet();
+					}
+				} else if (type == OperationType.RENAME && event.getDestinationNamespace() != null) {
+					drop(entry);
+					drop(FILTERS.get(key(profile, event.getDestinationNamespace().getCollectionName())));
+				} else if (type == OperationType.DROP) {
+					drop(entry);
+				} else {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			logger.warn("Change stream for key filters of profile '{}' failed: {}", profile, e.getMessage());
+		} finally {
+			// events may have been missed, filters built before now can't be trusted
+			synchronized (WATCHED) {
+				epoch(profile).incrementAndGet();
+				WATCHED.remove(profile);
+				FILTERS.values().stream().filter(entry -> entry.profile.equals(profile)).forEach(Entry::drop);
+			}
+		}
+	}
+
+	private static void drop(Entry entry) {
+		if (entry != null) {
+			entry.drop();
+		}
+	}
+
+	private static String toKey(BsonValue id) {
+		if (id instanceof BsonObjectId) {
+			return ((BsonObjectId) id).getValue().toHexString();
+		}
+		return (id == null || !id.isString()) ? String.valueOf(id) : id.asString().getValue();
+	}
+
+	/**
+	 * The filter of one table, and the filter being built to replace it.
+	 */
+	private static final class Entry {
+
+		private final String profile;
+		private final String table;
+		private final AtomicBoolean rebuilding = new AtomicBoolean();
+		private final AtomicLong deletes = new AtomicLong();
+		// guards the swap of the filters, so that no id is put only in a filter which is being replaced
+		private final Object lock = new Object();
+		private final Deque<Recent> recent = new ArrayDeque<>();
+		private volatile BloomFilter ready;
+		private volatile BloomFilter building;
+		private volatile long builtAt;
+
+		Entry(String profile, String table) {
+			this.profile = profile;
+			this.table = table;
+		}
+
+		/**
+		 * Adds the id of an object this node is about to write, and remembers it for the next rebuild.
+		 */
+		void add(String key) {
+			long now = System.currentTimeMillis();
+			synchronized (lock) {
+				put(key);
+				recent.addLast(new Recent(key, now));
+				while (!recent.isEmpty() && now - recent.peekFirst().at > RECENT_MS) {
+					recent.removeFirst();
+				}
+			}
+		}
+
+		/**
+		 * Adds the id of an object which is already written.
+		 */
+		void put(String key) {
+			synchronized (lock) {
+				if (ready != null) {
+					ready.put(key);
+				}
+				if (building != null) {
+					building.put(key);
+				}
+			}
+		}
+
+		void drop() {
+			ready = null;
+			builtAt = 0;
+		}
+
+		void rebuildIfStale(String appid) {
+			long ageMs = System.currentTimeMillis() - builtAt;
+			BloomFilter filter = ready;
+			boolean stale = ageMs > TimeUnit.MINUTES.toMillis(Math.max(1, MongoDBUtils.getConfigInt("key_filter_rebuild_min", 60)));
+			// deleted ids can't be removed from a Bloom filter, they only make it less useful
+			boolean outdated = filter != null && (filter.isFull() || deletes.get() > filter.count.get() / 10);
+			if ((stale || builtAt == 0 || outdated) && rebuilding.compareAndSet(false, true)) {
+				MongoDBExecutors.invokeLater(profile, () -> rebuild(appid));
+			}
+		}
+
+		void rebuild(String appid) {
+			long start = System.currentTimeMillis();
+			deletes.set(0);
+			try {
+				// the change stream must be open before the scan starts, so that no new id falls in between
+				long epoch;
+				synchronized (WATCHED) {
+					epoch = epoch(profile).get();
+					if (!watch(profile)) {
+						ready = null;
+						return;
+					}
+				}
+				MongoDatabase db = MongoDBRouting.getDatabase(profile);
+				MongoCollection<Document> main = db.getCollection(table);
+				MongoCollection<Document> archive = MongoDBArchive.isUsed(appid) ? MongoDBArchive.getTable(appid) : null;
+				long count = main.estimatedDocumentCount() + ((archive == null) ? 0 : archive.estimatedDocumentCount());
+				long maxKeys = MongoDBUtils.getConfigInt("key_filter_max_keys", 10_000_000);
+				if (count > maxKeys) {
+					logger.info("Table '{}' has more than {} ids, it won't have a key filter.", table, maxKeys);
+					ready = null;
+					return;
+				}
+				// room to grow until the next rebuild
+				BloomFilter filter = new BloomFilter(Math.min(maxKeys, Math.max(1000, count * 2)),
+						Double.parseDouble(MongoDBUtils.getConfigParam("key_filter_fpp", "0.01")));
+				synchronized (lock) {
+					building = filter;
+				}
+				scan(main, filter);
+				if (archive != null) {
+					scan(archive, filter);
+				}
+				synchronized (WATCHED) {
+					if (epoch(profile).get() == epoch) {
+						synchronized (lock) {
+							// ids added before the scan started may have been written after it passed them
+							long now = System.currentTimeMillis();
+							recent.stream().filter(r -> now - r.at <= RECENT_MS).forEach(r -> filter.put(r.key));
+							ready = filter;
+							building = null;
+						}
+					}
+				}
+				logger.debug("Built key filter for table '{}' with {} ids in {}ms.", table, filter.count.get(),
+						System.currentTimeMillis() - start);
+			} catch (Exception e) {
+				logger.warn("Failed to build the key filter for table '{}': {}", table, e.getMessage());
+				ready = null;
+			} finally {
+				synchronized (lock) {
+					building = null;
+				}
+				builtAt = start;
+				rebuilding.set(false);
+			}
+		}
+
+		private void scan(MongoCollection<Document> collection, BloomFilter filter) {
+			MongoDBResilience.execute(profile, () -> {
+				collection.find().projection(Projections.include(ID)).batchSize(10_000).
+						forEach(doc -> filter.put(MongoDBUtils.fromStoredId(doc.get(ID))));
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * An id added by this node, and when.
+	 */
+	private record Recent(String key, long at) { }
+
+	/**
+	 * A thread-safe Bloom filter over strings.
+	 */
+	private static final class BloomFilter {
+
+		private final AtomicLongArray bits;
+		private final long size;
+		private final int hashes;
+		private final long capacity;
+		private final AtomicLong count = new AtomicLong();
+
+		BloomFilter(long capacity, double fpp) {
+			double p = Math.min(0.5, Math.max(1e-9, fpp));
+			long m = (long) Math.ceil(-capacity * Math.log(p) / (Math.log(2) * Math.log(2)));
+			this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64));
+			this.size = bits.length() * 64L;
+			this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+			this.capacity = capacity;
+		}
+
+		void put(String key) {
+			if (key == null) {
+				return;
+			}
+			long hash = hash(key);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 1; i <= hashes; i++) {
+				long bit = Math.floorMod(h1 + (long) i * h2, size);
+				long mask = 1L << bit;
+				int index = (int) (bit >>> 6);
+				if ((bits.get(index) & mask) == 0) {
+					bits.getAndAccumulate(index, mask, (a, b) -> a | b);
+				}
+			}
+			count.incrementAndGet();
+		}
+
+		boolean mightContain(String key) {
+			if (key == null) {
+				return true;
+			}
+			long hash = hash(key);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 1; i <= hashes; i++) {
+				long bit = Math.floorMod(h1 + (long) i * h2, size);
+				if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean isFull() {
+			return count.get() > capacity;
+		}
+
+		private static long hash(String key) {
+			// FNV-1a over the UTF-8 bytes, then the murmur3 64-bit finalizer to spread the bits
+			long h = 0xcbf29ce484222325L;
+			for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+				h ^= b;
+				h *= 0x100000001b3L;
+			}
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import static com.erudika.para.server.persistence.MongoDBUtils.OBJECT_ID;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Online migrations of the documents in a table. Documents are rewritten in batches of
+ * {@code para.mongodb.migration_batch_size}, with a pause of {@code para.mongodb.migration_pause_ms}
+ * between batches to limit the load on the cluster. On replica sets and sharded clusters each batch is
+ * rewritten in a transaction, so the app can keep reading and writing while a migration runs.
+ */
+public final class MongoDBMigrations {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBMigrations.class);
+	private static final String ID = "_id";
+	private static final String CLUSTERED_SUFFIX = ".clustered";
+
+	private MongoDBMigrations() { }
+
+	/**
+	 * Converts the ids of all documents in a table to the storage format of {@code para.mongodb.compact_ids_enabled}.
+	 * With {@code compact = true}, string ids in ObjectId form become native ObjectIds, with {@code compact = false}
+	 * all ObjectIds become strings again. Compact ids must be enabled while this runs, in both directions,
+	 * because only then are objects found by either form of their id. Disable them after migrating back.
+	 * The archive table of the app, if there is one, is converted too.
+	 * @param appid app identifier
+	 * @param compact true to convert to ObjectIds, false to convert back to strings
+	 * @return the number of documents converted
+	 */
+	public static long migrateIds(String appid, boolean compact) {
+		if (StringUtils.isBlank(appid) || !MongoDBUtils.isCompactIdsEnabled()) {
+			logger.warn("Can't migrate ids of app '{}' - para.mongodb.compact_ids_enabled must be true.", appid);
+			return 0;
+		}
+		Bson legacyIds = compact ? Filters.and(Filters.type(ID, BsonType.STRING), Filters.regex(ID, "^[0-9a-f]{24}$")) :
+				Filters.type(ID, BsonType.OBJECT_ID);
+		Function<Document, Document> convert = doc -> {
+			Object id = doc.get(ID);
+			Document copy = new Document(doc);
+			copy.put(ID, compact ? new ObjectId((String) id) : ((ObjectId) id).toHexString());
+			return copy;
+		};
+		long converted = rewrite(appid, MongoDBUtils.getTable(appid), legacyIds, convert);
+		// archived objects are read by id as well, they would otherwise keep their old ids
+		MongoDatabase db = MongoDBUtils.getClient(appid);
+		if (MongoDBUtils.existsTable(db, MongoDBArchive.getTableName(appid))) {
+			converted += rewrite(appid, db.getCollection(MongoDBArchive.getTableName(appid)), legacyIds, convert);
+		}
+		logger.info("Converted {} ids in table '{}' to {}.", converted, MongoDBUtils.getTableNameForAppid(appid),
+				compact ? "ObjectIds" : "strings");
+		return converted;
+	}
+
+	/**
+	 * Removes the {@code _ObjectId} field, which schema version 1 adds to every document, from all documents in a
+	 * table. Set {@code para.mongodb.schema_version = 2} before running this, because version 1 needs the field
+	 * for pagination. Documents are updated in place, so this is safe to run while the app is in use.
+	 * @param appid app identifier
+	 * @return the number of documents updated
+	 */
+	public static long migrateToSchemaV2(String appid) {
+		if (StringUtils.isBlank(appid) || MongoDBUtils.getSchemaVersion() < 2) {
+			logger.warn("Can't migrate app '{}' to schema version 2 - para.mongodb.schema_version must be 2.", appid);
+			return 0;
+		}
+		MongoCollection<Document> table = MongoDBUtils.getTable(appid);
+		int batchSize = Math.max(1, MongoDBUtils.getConfigInt("migration_batch_size", 500));
+		long migrated = 0;
+		List<Object> batch = new ArrayList<>(batchSize);
+		String cluster = MongoDBRouting.getProfile(appid);
+		// a single pass over the table, the field isn't indexed and querying for it again would scan it each time
+		try (MongoCursor<Document> cursor = table.find(Filters.exists(OBJECT_ID)).projection(Projections.include(ID)).
+				batchSize(batchSize).cursor()) {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next().get(ID));
+				if (batch.size() >= batchSize || !cursor.hasNext()) {
+					Bson ids = Filters.in(ID, new ArrayList<>(batch));
+					migrated += MongoDBResilience.execute(cluster, () -> table.updateMany(ids, Updates.unset(OBJECT_ID))).getModifiedCount();
+					batch.clear();
+					pause();
+				}
+			}
+		}
+		logger.info("Migrated {} documents in table '{}' to schema version 2.", migrated, MongoDBUtils.getTableNameForAppid(appid));
+		return migrated;
+	}
+
+	/**
+	 * Runs {@link #migrateToSchemaV2(String)} in the background.
+	 * @param appid app identifier
+	 * @return a future number of documents updated
+	 */
+	public static CompletableFuture<Long> migrateToSchemaV2Async(String appid) {
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		MongoDBExecutors.invokeLater(MongoDBRouting.getProfile(appid), () -> {
+			try {
+				result.complete(migrateToSchemaV2(appid));
+			} catch (Exception e) {
+				logger.error("Migration of app '{}' to schema version 2 failed: {}", appid, e.getMessage());
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Converts the table of an app to a clustered collection, see {@link MongoDBUtils#isClusteredTablesEnabled()}.
+	 * The documents are copied to a new clustered collection, in batches, then documents written or deleted during
+	 * the copy are copied or deleted again, as seen by a change stream, until no writes are seen for
+	 * {@code para.mongodb.migration_quiet_ms} (default 2000). Then all operations of the app on this node are stopped
+	 * with {@link MongoDBAdmission#exclusive(String)}, the last changes are caught up, and the new collection
+	 * replaces the old one. If the table is still written to after {@code para.mongodb.migration_catch_up_rounds}
+	 * (default 10) rounds of catching up, the conversion is refused. Writes from other nodes aren't stopped, so they
+	 * must be stopped before the conversion runs. Without change streams (standalone servers) the app must be idle,
+	 * because deletes made during the copy come back. Sharded tables can't be converted, because they can't be
+	 * renamed.
+	 * @param appid app identifier
+	 * @return the number of documents copied
+	 * @throws IllegalStateException if the table is still being written to
+	 */
+	public static long migrateToClusteredTable(String appid) {
+		if (StringUtils.isBlank(appid) || !MongoDBUtils.existsTable(appid) || MongoDBUtils.isClusteredTable(appid)) {
+			return 0;
+		}
+		if (MongoDBUtils.isShardingEnabled()) {
+			logger.warn("Can't convert table '{}' to a clustered collection - sharded tables can't be renamed.",
+					MongoDBUtils.getTableNameForAppid(appid));
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		MongoDatabase db = MongoDBUtils.getClient(appid);
+		String table = MongoDBUtils.getTableNameForAppid(appid);
+		String cluster = MongoDBRouting.getProfile(appid);
+		// a copy left over from an interrupted migration is started over
+		db.getCollection(table + CLUSTERED_SUFFIX).drop();
+		db.createCollection(table + CLUSTERED_SUFFIX, MongoDBUtils.clusteredTableOptions());
+		MongoCollection<Document> source = db.getCollection(table);
+		MongoCollection<Document> target = db.getCollection(table + CLUSTERED_SUFFIX);
+		MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes = watch(source);
+		long copied;
+		try {
+			copied = copy(cluster, source, target, Filters.empty());
+			MongoDBUtils.createIndexes(target);
+			if (changes != null) {
+				copied += catchUp(cluster, changes, source, target);
+			}
+			// a write between the last catch-up and the swap would be lost
+			try (MongoDBAdmission.Permit paused = MongoDBAdmission.exclusive(appid)) {
+				if (changes == null) {
+					logger.warn("Change streams aren't available, documents deleted from table '{}' during the conversion "
+							+ "may come back.", table);
+					copied += copy(cluster, source, target, Filters.or(Filters.gte(Config._TIMESTAMP, start),
+							Filters.gte(Config._UPDATED, start)));
+				} else {
+					// gives the change stream time to deliver the writes which were still running
+					pause(Math.max(0, MongoDBUtils.getConfigInt("migration_quiet_ms", 2000)));
+					copied += catchUp(cluster, changes, source, target);
+				}
+				target.renameCollection(new MongoNamespace(db.getName(), table), new RenameCollectionOptions().dropTarget(true));
+			}
+		} catch (RuntimeException e) {
+			target.drop();
+			throw e;
+		} finally {
+			close(changes);
+		}
+		logger.info("Converted table '{}' to a clustered collection, {} documents copied.", table, copied);
+		return copied;
+	}
+
+	private static long catchUp(String cluster, MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes,
+			MongoCollection<Document> source, MongoCollection<Document> target) {
+		long quietMs = Math.max(0, MongoDBUtils.getConfigInt("migration_quiet_ms", 2000));
+		int maxRounds = Math.max(1, MongoDBUtils.getConfigInt("migration_catch_up_rounds", 10));
+		long copied = 0;
+		Set<BsonDocument> keys = drain(changes);
+		for (int round = 0; !keys.isEmpty(); round++) {
+			if (round == maxRounds) {
+				throw new IllegalStateException("Table '" + source.getNamespace().getCollectionName() + "' is still "
+						+ "being written to - stop writes to the app and run the conversion again.");
+			}
+			copied += replay(cluster, cluster, keys, source, target);
+			pause(quietMs);
+			keys = drain(changes);
+		}
+		return copied;
+	}
+
+	/**
+	 * Opens a change stream on a table, which only carries the ids of the changed documents.
+	 * @param table a table
+	 * @return a cursor or null if change streams aren't supported by the server
+	 */
+	static MongoChangeStreamCursor<ChangeStreamDocument<Document>> watch(MongoCollection<Document> table) {
+		try {
+			return table.watch(List.of(Aggregates.project(Projections.include("operationType", "documentKey")))).cursor();
+		} catch (Exception e) {
+			logger.debug("Can't watch table '{}': {}", table.getNamespace().getCollectionName(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the ids of all documents changed since the last call, without waiting for new changes.
+	 * @param changes a change stream
+	 * @return the distinct document keys
+	 */
+	static Set<BsonDocument> drain(MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes) {
+		Set<BsonDocument> keys = new LinkedHashSet<>();
+		ChangeStreamDocument<Document> event;
+		while ((event = changes.tryNext()) != null) {
+			if (event.getDocumentKey() != null) {
+				keys.add(event.getDocumentKey());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Copies changed documents to the target table. Each document is copied in its current state, or deleted from
+	 * the target if it no longer exists, so changes can be replayed in any order and more than once.
+	 * @param sourceCluster the connection profile of the source table
+	 * @param targetCluster the connection profile of the target table
+	 * @param keys the keys of the changed documents
+	 * @param from source table
+	 * @param to target table
+	 * @return the number of documents copied or deleted
+	 */
+	static long replay(String sourceCluster, String targetCluster, Set<BsonDocument> keys,
+			MongoCollection<Document> from, MongoCollection<Document> to) {
+		long replayed = 0;
+		for (BsonDocument key : keys) {
+			Document doc = MongoDBResilience.execute(sourceCluster, () -> from.find(key).first());
+			if (doc == null) {
+				MongoDBResilience.execute(targetCluster, () -> to.deleteOne(key));
+			} else {
+				MongoDBResilience.execute(targetCluster, () -> to.replaceOne(key, doc, new ReplaceOptions().upsert(true)));
+			}
+			replayed++;
+		}
+		return replayed;
+	}
+
+	static void close(MongoChangeStreamCursor<?> cursor) {
+		if (cursor != null) {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Replaces all documents matching a filter with new documents. The filter must not match the new documents,
+	 * which is how the migration can be resumed after a restart. The table is walked in {@code _id} order, each batch
+	 * starting after the last id of the previous one, so that documents which don't match aren't scanned again.
+	 * @param appid app identifier
+	 * @param table the main or the archive table of the app
+	 * @param filter matches documents which haven't been rewritten yet
+	 * @param rewrite returns the new version of a document
+	 * @return the number of documents rewritten
+	 */
+	static long rewrite(String appid, MongoCollection<Document> table, Bson filter, Function<Document, Document> rewrite) {
+		int batchSize = Math.max(1, MongoDBUtils.getConfigInt("migration_batch_size", 500));
+		boolean transactional = isTransactionSupported(appid);
+		if (!transactional) {
+			logger.warn("Transactions aren't supported by the server, the migration of table '{}' should run while "
+					+ "the app is idle.", table.getNamespace().getCollectionName());
+		}
+		long rewritten = 0;
+		Object lastId = null;
+		List<Document> docs;
+		do {
+			Bson batch = (lastId == null) ? filter : Filters.and(filter, Filters.gt(ID, lastId));
+			if (transactional) {
+				try (ClientSession session = MongoDBUtils.getMongoClient(appid).startSession()) {
+					docs = MongoDBResilience.execute(MongoDBRouting.getProfile(appid), () -> session.withTransaction(() -> {
+						// reading the batch in the transaction makes sure no concurrent write is lost
+						List<Document> found = table.find(session, batch).sort(Sorts.ascending(ID)).limit(batchSize).
+								into(new ArrayList<>(batchSize));
+						replace(session, table, found, rewrite);
+						return found;
+					}));
+				}
+			} else {
+				docs = table.find(batch).sort(Sorts.ascending(ID)).limit(batchSize).into(new ArrayList<>(batchSize));
+				replace(null, table, docs, rewrite);
+			}
+			if (!docs.isEmpty()) {
+				lastId = docs.get(docs.size() - 1).get(ID);
+			}
+			rewritten += docs.size();
+			pause();
+		} while (!docs.isEmpty());
+		return rewritten;
+	}
+
+	/**
+	 * Writes the new versions of a batch of documents. Documents which keep their id are replaced in place. Documents
+	 * with a new id are inserted before the old ones are deleted, so that an interrupted batch leaves both copies,
+	 * instead of neither, and the old copy is rewritten again when the migration is resumed.
+	 */
+	private static void replace(ClientSession session, MongoCollection<Document> table, List<Document> docs,
+			Function<Document, Document> rewrite) {
+		if (docs.isEmpty()) {
+			return;
+		}
+		List<WriteModel<Document>> replacements = new ArrayList<>();
+		List<Document> copies = new ArrayList<>();
+		List<Object> oldIds = new ArrayList<>();
+		for (Document doc : docs) {
+			Document copy = rewrite.apply(doc);
+			if (copy.get(ID).equals(doc.get(ID))) {
+				replacements.add(new ReplaceOneModel<>(idFilter(copy), copy));
+			} else {
+				copies.add(copy);
+				oldIds.add(doc.get(ID));
+			}
+		}
+		if (!replacements.isEmpty()) {
+			if (session == null) {
+				table.bulkWrite(replacements);
+			} else {
+				table.bulkWrite(session, replacements);
+			}
+		}
+		if (copies.isEmpty()) {
+			return;
+		}
+		Bson newIds = Filters.in(ID, copies.stream().map(d -> d.get(ID)).toList());
+		Set<Object> existing = new HashSet<>();
+		if (session == null) {
+			table.find(newIds).projection(Projections.include(ID)).forEach(d -> existing.add(d.get(ID)));
+		} else {
+			table.find(session, newIds).projection(Projections.include(ID)).forEach(d -> existing.add(d.get(ID)));
+		}
+		// a document already stored under its new id was written after the old one, or by an interrupted batch, so it's kept
+		List<Document> inserts = copies.stream().filter(d -> !existing.contains(d.get(ID))).toList();
+		if (session == null) {
+			if (!inserts.isEmpty()) {
+				table.insertMany(inserts);
+			}
+			table.deleteMany(Filters.in(ID, oldIds));
+		} else {
+			if (!inserts.isEmpty()) {
+				table.insertMany(session, inserts);
+			}
+			table.deleteMany(session, Filters.in(ID, oldIds));
+		}
+	}
+
+	private static Bson idFilter(Document doc) {
+		return MongoDBUtils.isAppidInShardKey() ?
+				Filters.and(Filters.eq(Config._APPID, doc.get(Config._APPID)), Filters.eq(ID, doc.get(ID))) : Filters.eq(ID, doc.get(ID));
+	}
+
+	/**
+	 * Copies the documents matching a filter from one table to another. Documents are replaced by id, so the copy
+	 * can be repeated, e.g. to catch up with writes made while it was running.
+	 * @param cluster the name of the target cluster, for the circuit breaker
+	 * @param from source table
+	 * @param to target table
+	 * @param filter selects the documents to copy
+	 * @return the number of documents copied
+	 */
+	static long copy(String cluster, MongoCollection<Document> from, MongoCollection<Document> to, Bson filter) {
+		int batchSize = Math.max(1, MongoDBUtils.getConfigInt("migration_batch_size", 500));
+		long copied = 0;
+		List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+		try (MongoCursor<Document> cursor = from.find(filter).batchSize(batchSize).cursor()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				// replacing by id makes the copy idempotent, so an interrupted copy can simply be started again
+				batch.add(new ReplaceOneModel<>(idFilter(doc), doc, new ReplaceOptions().upsert(true)));
+				if (batch.size() >= batchSize || !cursor.hasNext()) {
+					List<WriteModel<Document>> writes = new ArrayList<>(batch);
+					MongoDBResilience.execute(cluster, () -> to.bulkWrite(writes));
+					copied += writes.size();
+					batch.clear();
+					pause();
+				}
+			}
+		}
+		return copied;
+	}
+
+	private static boolean isTransactionSupported(String appid) {
+		Document hello = MongoDBUtils.getClient(appid).runCommand(new Document("hello", 1));
+		return hello.containsKey("setName") || "isdbgrid".equals(hello.getString("msg"));
+	}
+
+	/**
+	 * Sleeps for {@code para.mongodb.migration_pause_ms} between batches.
+	 */
+	static void pause() {
+		pause(MongoDBUtils.getConfigInt("migration_pause_ms", 0));
+	}
+
+	/**
+	 * Sleeps between steps of a migration.
+	 * @param ms time in milliseconds
+	 */
+	static void pause(long ms) {
+		if (ms > 0) {
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
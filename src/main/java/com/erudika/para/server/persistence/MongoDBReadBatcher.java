@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import org.bson.RawBsonDocument;
+
+/**
+ * Gathers point reads into batches, which are loaded with a single {@code $in} query per app.
+ * The first read of a batch waits for up to {@code para.mongodb.read_batching_window_ms} for more
+ * reads to join, then loads the whole batch. A batch is loaded immediately once it reaches
+ * {@code para.mongodb.read_batching_max_size} keys. No background threads are used - batches are
+ * always loaded by one of the waiting callers.
+ */
+final class MongoDBReadBatcher {
+
+	private static final Map<String, Batch> PENDING = new ConcurrentHashMap<>();
+
+	private MongoDBReadBatcher() { }
+
+	static boolean isEnabled() {
+		return getWindowMs() > 0;
+	}
+
+	/**
+	 * Reads a single document as part of a batch.
+	 * @param appid app identifier
+	 * @param key object id
+	 * @param loader loads the documents for a list of keys and returns a map of key to document
+	 * @return the document or null if not found
+	 */
+	static RawBsonDocument read(String appid, String key, Function<List<String>, Map<String, RawBsonDocument>> loader) {
+		int windowMs = getWindowMs();
+		if (windowMs <= 0) {
+			return loader.apply(List.of(key)).get(key);
+		}
+		int maxSize = Math.max(1, MongoDBUtils.getConfigInt("read_batching_max_size", 100));
+		Batch batch;
+		CompletableFuture<RawBsonDocument> result;
+		boolean leader;
+		boolean full;
+		do {
+			batch = PENDING.computeIfAbsent(appid, k -> new Batch());
+			synchronized (batch) {
+				if (batch.closed) {
+					// this batch is being loaded already, start or join the next one
+					continue;
+				}
+				leader = batch.reads.isEmpty();
+				result = batch.reads.computeIfAbsent(key, k -> new CompletableFuture<>());
+				full = batch.reads.size() >= maxSize;
+			}
+			break;
+		} while (true);
+
+		if (full) {
+			load(appid, batch, loader);
+		} else if (leader) {
+			try {
+				return result.get(windowMs, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				load(appid, batch, loader);
+			} catch (InterruptedException e) {
+				// the others are waiting on this thread, so the batch must be loaded regardless
+				load(appid, batch, loader);
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new IllegalStateException(e);
+			}
+		}
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	private static void load(String appid, Batch batch, Function<List<String>, Map<String, RawBsonDocument>> loader) {
+		synchronized (batch) {
+			if (batch.closed) {
+				return;
+			}
+			batch.closed = true;
+			PENDING.remove(appid, batch);
+		}
+		// the batch is closed, no more reads can be added to it
+		try {
+			Map<String, RawBsonDocument> docs = loader.apply(new ArrayList<>(batch.reads.keySet()));
+			batch.reads.forEach((key, f) -> f.complete(docs.get(key)));
+		} catch (RuntimeException e) {
+			batch.reads.values().forEach(f -> f.completeExceptionally(e));
+		}
+	}
+
+	private static int getWindowMs() {
+		return MongoDBUtils.getConfigInt("read_batching_window_ms", 0);
+	}
+
+	/**
+	 * A batch of pending point reads for one app.
+	 */
+	private static final class Batch {
+		private final Map<String, CompletableFuture<RawBsonDocument>> reads = new LinkedHashMap<>();
+		private boolean closed;
+	}
+}
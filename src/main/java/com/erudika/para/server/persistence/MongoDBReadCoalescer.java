@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.bson.RawBsonDocument;
+
+/**
+ * Coalesces concurrent reads of the same object ("single-flight"). While a read of a key is in flight,
+ * other threads reading the same key wait for its result instead of sending their own query.
+ * Results are shared as immutable {@link RawBsonDocument}s, each caller decodes its own copy.
+ * Writes invalidate in-flight reads of the keys they touch, so a read started after a write has
+ * completed never receives a result loaded before that write.
+ * Off by default, turned on with {@code para.mongodb.read_coalescing_enabled = true}.
+ */
+final class MongoDBReadCoalescer {
+
+	private static final Map<String, CompletableFuture<RawBsonDocument>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+	private MongoDBReadCoalescer() { }
+
+	static boolean isEnabled() {
+		return MongoDBUtils.getConfigBoolean("read_coalescing_enabled", false);
+	}
+
+	/**
+	 * Reads a single document, sharing the result with concurrent reads of the same key.
+	 * @param appid app identifier
+	 * @param key object id
+	 * @param loader loads the document from the database
+	 * @return the document or null if not found
+	 */
+	static RawBsonDocument read(String appid, String key, Supplier<RawBsonDocument> loader) {
+		if (!isEnabled()) {
+			return loader.get();
+		}
+		String flightKey = flightKey(appid, key);
+		CompletableFuture<RawBsonDocument> mine = new CompletableFuture<>();
+		CompletableFuture<RawBsonDocument> existing = IN_FLIGHT.putIfAbsent(flightKey, mine);
+		if (existing != null) {
+			return join(existing);
+		}
+		try {
+			RawBsonDocument doc = loader.get();
+			mine.complete(doc);
+			return doc;
+		} catch (RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			IN_FLIGHT.remove(flightKey, mine);
+		}
+	}
+
+	/**
+	 * Reads multiple documents. Keys which are already being read by other threads are not queried again,
+	 * the remaining keys are loaded with a single query.
+	 * @param appid app identifier
+	 * @param keys object ids
+	 * @param loader loads the documents for a list of keys and returns a map of key to document
+	 * @return a map of key to document, in the order of the given keys, without the keys which were not found
+	 */
+	static Map<String, RawBsonDocument> readAll(String appid, Collection<String> keys,
+			Function<List<String>, Map<String, RawBsonDocument>> loader) {
+		Collection<String> uniqueKeys = new LinkedHashSet<>(keys);
+		if (!isEnabled()) {
+			return inOrder(uniqueKeys, loader.apply(new ArrayList<>(uniqueKeys)));
+		}
+		Map<String, CompletableFuture<RawBsonDocument>> mine = new LinkedHashMap<>(uniqueKeys.size());
+		Map<String, CompletableFuture<RawBsonDocument>> others = new LinkedHashMap<>();
+		for (String key : uniqueKeys) {
+			CompletableFuture<RawBsonDocument> f = new CompletableFuture<>();
+			CompletableFuture<RawBsonDocument> existing = IN_FLIGHT.putIfAbsent(flightKey(appid, key), f);
+			if (existing == null) {
+				mine.put(key, f);
+			} else {
+				others.put(key, existing);
+			}
+		}
+		Map<String, RawBsonDocument> loaded = new LinkedHashMap<>(mine.size());
+		try {
+			// our own keys are loaded and completed before waiting for others, so two overlapping calls can't deadlock
+			if (!mine.isEmpty()) {
+				loaded.putAll(loader.apply(new ArrayList<>(mine.keySet())));
+			}
+			mine.forEach((key, f) -> f.complete(loaded.get(key)));
+		} catch (RuntimeException e) {
+			mine.values().forEach(f -> f.completeExceptionally(e));
+			throw e;
+		} finally {
+			mine.forEach((key, f) -> IN_FLIGHT.remove(flightKey(appid, key), f));
+		}
+		others.forEach((key, f) -> loaded.put(key, join(f)));
+		return inOrder(uniqueKeys, loaded);
+	}
+
+	/**
+	 * Detaches in-flight reads of a key, so that the next read goes to the database.
+	 * @param appid app identifier
+	 * @param key object id
+	 */
+	static void invalidate(String appid, String key) {
+		if (!IN_FLIGHT.isEmpty()) {
+			IN_FLIGHT.remove(flightKey(appid, key));
+		}
+	}
+
+	static void invalidate(String appid, Collection<String> keys) {
+		if (!IN_FLIGHT.isEmpty()) {
+			keys.forEach(key -> IN_FLIGHT.remove(flightKey(appid, key)));
+		}
+	}
+
+	/**
+	 * Detaches all in-flight reads of an app, e.g. after a write to an unknown set of keys.
+	 * @param appid app identifier
+	 */
+	static void invalidateAll(String appid) {
+		if (!IN_FLIGHT.isEmpty()) {
+			String prefix = flightKey(appid, "");
+			IN_FLIGHT.keySet().removeIf(k -> k.startsWith(prefix));
+		}
+	}
+
+	private static Map<String, RawBsonDocument> inOrder(Collection<String> keys, Map<String, RawBsonDocument> docs) {
+		Map<String, RawBsonDocument> results = new LinkedHashMap<>(docs.size());
+		for (String key : keys) {
+			RawBsonDocument doc = docs.get(key);
+			if (doc != null) {
+				results.put(key, doc);
+			}
+		}
+		return results;
+	}
+
+	private static RawBsonDocument join(CompletableFuture<RawBsonDocument> f) {
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	private static String flightKey(String appid, String key) {
+		// app identifiers can't contain '/'
+		return appid + "/" + key;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.mongodb.MongoConnectionPoolClearedException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoServerUnavailableException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries, backoff, circuit breaking and hedged reads for calls to MongoDB.
+ * <ul>
+ * <li>Transient errors (network errors, elections, errors labeled as retryable) are retried up to
+ * {@code para.mongodb.retry_max_attempts} times with jittered exponential backoff.</li>
+ * <li>After {@code para.mongodb.circuit_breaker_threshold} consecutive failures caused by an unavailable
+ * cluster, calls fail fast for {@code para.mongodb.circuit_breaker_open_ms} milliseconds. Then a single
+ * call is let through to check if the cluster has recovered.</li>
+ * <li>If {@code para.mongodb.hedged_reads_after_ms} is set, a point read that takes longer than that is
+ * also sent to a secondary. The secondary only wins if it finds the object first, otherwise the primary
+ * decides, because a lagging secondary may not have an object which was just written.</li>
+ * </ul>
+ * All operations executed with retries must be idempotent, others go through {@link #executeOnce(String, Supplier)}.
+ */
+final class MongoDBResilience {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBResilience.class);
+	private static final String RETRYABLE_WRITE_ERROR_LABEL = "RetryableWriteError";
+	private static final String DEFAULT_CLUSTER = MongoDBRouting.DEFAULT_PROFILE;
+	private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+	private MongoDBResilience() { }
+
+	/**
+	 * Executes a call with retries and circuit breaking.
+	 * @param <T> result type
+	 * @param call an idempotent call to MongoDB
+	 * @return the result of the call
+	 */
+	static <T> T execute(Supplier<T> call) {
+		return execute(DEFAULT_CLUSTER, call);
+	}
+
+	/**
+	 * Executes a call with retries and circuit breaking.
+	 * @param <T> result type
+	 * @param cluster the name of the cluster, each cluster has its own circuit breaker
+	 * @param call an idempotent call to MongoDB
+	 * @return the result of the call
+	 */
+	static <T> T execute(String cluster, Supplier<T> call) {
+		CircuitBreaker breaker = BREAKERS.computeIfAbsent(cluster, CircuitBreaker::new);
+		int maxAttempts = Math.max(1, MongoDBUtils.getConfigInt("retry_max_attempts", 3));
+		for (int attempt = 1;; attempt++) {
+			breaker.acquire();
+			try {
+				T result = call.get();
+				breaker.onSuccess();
+				return result;
+			} catch (RuntimeException e) {
+				if (isUnavailable(e)) {
+					breaker.onFailure();
+				} else {
+					breaker.onSuccess();
+				}
+				if (attempt >= maxAttempts || !isRetryable(e)) {
+					throw e;
+				}
+				logger.debug("Retrying MongoDB operation after error (attempt {}): {}", attempt, e.getMessage());
+				backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Executes a call which isn't idempotent, with circuit breaking but without retries. Such writes are only
+	 * retried by the driver's retryable writes ({@code retryWrites=true}), which make sure they are applied once.
+	 * @param <T> result type
+	 * @param cluster the name of the cluster, each cluster has its own circuit breaker
+	 * @param call a call to MongoDB
+	 * @return the result of the call
+	 */
+	static <T> T executeOnce(String cluster, Supplier<T> call) {
+		CircuitBreaker breaker = BREAKERS.computeIfAbsent(cluster, CircuitBreaker::new);
+		breaker.acquire();
+		try {
+			T result = call.get();
+			breaker.onSuccess();
+			return result;
+		} catch (RuntimeException e) {
+			if (isUnavailable(e)) {
+				breaker.onFailure();
+			} else {
+				breaker.onSuccess();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes a point read. If it doesn't complete within {@code para.mongodb.hedged_reads_after_ms}, the same
+	 * read is sent to a secondary node, and its result is used if it isn't null and arrives first.
+	 * @param <T> result type
+	 * @param primaryRead the read, using the default read preference
+	 * @param secondaryRead the same read, using a secondary read preference
+	 * @return the result of the primary, or the first non-null result
+	 */
+	static <T> T hedge(Supplier<T> primaryRead, Supplier<T> secondaryRead) {
+		return hedge(DEFAULT_CLUSTER, primaryRead, secondaryRead);
+	}
+
+	/**
+	 * Executes a point read, hedged like {@link #hedge(Supplier, Supplier)}.
+	 * @param <T> result type
+	 * @param cluster the name of the cluster, each cluster has its own circuit breaker
+	 * @param primaryRead the read, using the default read preference
+	 * @param secondaryRead the same read, using a secondary read preference
+	 * @return the result of the primary, or the first non-null result
+	 */
+	static <T> T hedge(String cluster, Supplier<T> primaryRead, Supplier<T> secondaryRead) {
+		int hedgeAfterMs = MongoDBUtils.getConfigInt("hedged_reads_after_ms", 0);
+		if (hedgeAfterMs <= 0) {
+			return execute(cluster, primaryRead);
+		}
+		CompletableFuture<T> primary = MongoDBExecutors.supplyAsync(() -> execute(cluster, primaryRead));
+		try {
+			return primary.get(hedgeAfterMs, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.debug("Read took longer than {}ms, hedging it to a secondary.", hedgeAfterMs);
+			CompletableFuture<T> secondary = MongoDBExecutors.supplyAsync(() -> execute(cluster, secondaryRead));
+			return firstFound(primary, secondary);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Waits for the result of the primary, unless the secondary finds something first. A miss on the secondary
+	 * isn't trusted, but if the primary fails, whatever the secondary returned is used.
+	 */
+	private static <T> T firstFound(CompletableFuture<T> primary, CompletableFuture<T> secondary) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		primary.whenComplete((value, error) -> {
+			if (error == null) {
+				result.complete(value);
+			} else {
+				secondary.whenComplete((secondaryValue, secondaryError) -> {
+					if (secondaryError == null) {
+						result.complete(secondaryValue);
+					} else {
+						result.completeExceptionally(error);
+					}
+				});
+			}
+		});
+		secondary.whenComplete((value, error) -> {
+			if (error == null && value != null) {
+				result.complete(value);
+			}
+		});
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static RuntimeException unwrap(ExecutionException e) {
+		Throwable cause = (e.getCause() == null) ? e : e.getCause();
+		if (cause.getCause() != null && cause instanceof CompletionException) {
+			cause = cause.getCause();
+		}
+		return (cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause);
+	}
+
+	/**
+	 * Sleeps before a retry, for a random time up to a limit which doubles with each attempt.
+	 * @param attempt the number of the failed attempt, starting at 1
+	 */
+	static void backoff(int attempt) {
+		long base = MongoDBUtils.getConfigInt("retry_base_delay_ms", 50);
+		long max = MongoDBUtils.getConfigInt("retry_max_delay_ms", 1000);
+		long ceiling = Math.min(max, base << Math.min(attempt - 1, 20));
+		try {
+			// "full jitter" - spreads retries from many clients evenly over the backoff window
+			Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static boolean isRetryable(Throwable e) {
+		if (e instanceof MongoException) {
+			MongoException me = (MongoException) e;
+			if (me.hasErrorLabel(RETRYABLE_WRITE_ERROR_LABEL) || me.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+				return true;
+			}
+		}
+		return e instanceof MongoSocketException || e instanceof MongoNotPrimaryException ||
+				e instanceof MongoNodeIsRecoveringException || e instanceof MongoConnectionPoolClearedException;
+	}
+
+	static boolean isUnavailable(Throwable e) {
+		return e instanceof MongoTimeoutException || e instanceof MongoServerUnavailableException || isRetryable(e);
+	}
+
+	/**
+	 * A simple consecutive-failures circuit breaker.
+	 */
+	private static final class CircuitBreaker {
+
+		private final String cluster;
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicLong openUntil = new AtomicLong();
+
+		CircuitBreaker(String cluster) {
+			this.cluster = cluster;
+		}
+
+		void acquire() {
+			long until = openUntil.get();
+			if (until == 0) {
+				return;
+			}
+			// when the open period is over, a single caller wins the CAS and probes the cluster (half-open)
+			long now = System.currentTimeMillis();
+			if (now < until || !openUntil.compareAndSet(until, now + getOpenMs())) {
+				throw new IllegalStateException("MongoDB cluster '" + cluster + "' is unavailable, circuit breaker is open.");
+			}
+		}
+
+		void onSuccess() {
+			failures.set(0);
+			openUntil.set(0);
+		}
+
+		void onFailure() {
+			int threshold = MongoDBUtils.getConfigInt("circuit_breaker_threshold", 10);
+			if (threshold > 0 && failures.incrementAndGet() >= threshold) {
+				if (openUntil.getAndSet(System.currentTimeMillis() + getOpenMs()) == 0) {
+					logger.warn("MongoDB cluster '{}' is unavailable, circuit breaker opened.", cluster);
+				}
+			}
+		}
+
+		private long getOpenMs() {
+			return MongoDBUtils.getConfigInt("circuit_breaker_open_ms", 5000);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.App;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.Para;
+import com.mongodb.ConnectionString;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes apps to connection profiles, each with its own client, connection pool and database, so that
+ * big tenants can be isolated on a cluster of their own. Profiles are declared with
+ * {@code para.mongodb.connection_profiles = "big, eu"} and configured with {@code para.mongodb.profile.[name].uri},
+ * {@code .database} and {@code .connection_pool_size}. The main settings, {@code para.mongodb.uri} etc., are the
+ * {@code "default"} profile.
+ * <p>
+ * An app is routed, in this order, by the route stored when it was moved with {@link #moveApp(String, String)},
+ * by {@code para.mongodb.routes = "appid1:big, appid2:eu"}, or by hashing its identifier over the profiles in
+ * {@code para.mongodb.route_hash_profiles}. Otherwise it stays on the default profile, and so does the root app,
+ * which holds the stored routes. Routes are reloaded every {@code para.mongodb.route_refresh_sec} seconds.
+ */
+public final class MongoDBRouting {
+
+	/**
+	 * The profile using the main connection settings.
+	 */
+	public static final String DEFAULT_PROFILE = "default";
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBRouting.class);
+	private static final String ID = "_id";
+	private static final String PROFILE = "profile";
+	private static final String ROUTES_SUFFIX = ".routes";
+	private static final Map<String, MongoClient> CLIENTS = new ConcurrentHashMap<>();
+	private static final Map<String, String> ROUTES = new ConcurrentHashMap<>();
+	private static final AtomicLong ROUTES_LOADED = new AtomicLong();
+	private static volatile Map<String, String> storedRoutes = Map.of();
+
+	private MongoDBRouting() { }
+
+	/**
+	 * Returns true if connection profiles other than the default one are declared.
+	 * @return true if apps may be routed to other clusters
+	 */
+	public static boolean isEnabled() {
+		return !StringUtils.isBlank(MongoDBUtils.getConfigParam("connection_profiles", ""));
+	}
+
+	/**
+	 * Returns the connection profile an app is routed to.
+	 * @param appid app identifier
+	 * @return a profile name
+	 */
+	public static String getProfile(String appid) {
+		if (StringUtils.isBlank(appid) || App.isRoot(appid) || !isEnabled()) {
+			return DEFAULT_PROFILE;
+		}
+		refreshStoredRoutes();
+		return ROUTES.computeIfAbsent(appid, MongoDBRouting::resolve);
+	}
+
+	/**
+	 * Returns the database of a connection profile.
+	 * @param profile profile name
+	 * @return a database
+	 */
+	static MongoDatabase getDatabase(String profile) {
+		if (DEFAULT_PROFILE.equals(profile)) {
+			return MongoDBUtils.getClient();
+		}
+		return getMongoClient(profile).getDatabase(getProfileParam(profile, "database", Para.getConfig().mongoDatabase()));
+	}
+
+	/**
+	 * Returns the client of a connection profile, connecting on first use.
+	 * @param profile profile name
+	 * @return a client
+	 */
+	static MongoClient getMongoClient(String profile) {
+		if (DEFAULT_PROFILE.equals(profile)) {
+			return MongoDBUtils.getMongoClient();
+		}
+		return CLIENTS.computeIfAbsent(profile, MongoDBRouting::connect);
+	}
+
+	/**
+	 * Closes the clients of all profiles except the default one.
+	 */
+	static void shutdown() {
+		CLIENTS.values().forEach(MongoClient::close);
+		CLIENTS.clear();
+		ROUTES.clear();
+		storedRoutes = Map.of();
+		ROUTES_LOADED.set(0);
+	}
+
+	/**
+	 * Moves an app to another connection profile. The table, and the archive table if there is one, are copied to
+	 * the new cluster, then the new route is stored, so all nodes switch to it within {@code para.mongodb.route_refresh_sec}.
+	 * After that, objects written or deleted on the old cluster during the copy are copied or deleted again, as seen
+	 * by a change stream opened before the copy. Without change streams (standalone servers), only objects created or
+	 * updated during the copy are copied again, and deletes are lost. Writes to the app should be stopped during the
+	 * move: a write which reaches the old cluster after the last catch-up, from a node which is slow to switch, is lost.
+	 * The old tables are kept and should be dropped once the move is verified. Add the route to
+	 * {@code para.mongodb.routes} too, if routes in the config should match the stored ones.
+	 * @param appid app identifier
+	 * @param profile the target profile
+	 * @return the number of objects copied
+	 */
+	public static long moveApp(String appid, String profile) {
+		if (StringUtils.isBlank(appid) || App.isRoot(appid) || !isDeclared(profile)) {
+			throw new IllegalArgumentException("Can't move app '" + appid + "' to connection profile '" + profile + "'.");
+		}
+		String source = getProfile(appid);
+		if (source.equals(profile)) {
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		String table = MongoDBUtils.getTableNameForAppid(appid);
+		MongoCollection<Document> from = getDatabase(source).getCollection(table);
+		MongoDBUtils.createTable(appid, profile);
+		MongoCollection<Document> to = getDatabase(profile).getCollection(table);
+		MongoCollection<Document> fromArchive = MongoDBUtils.existsTable(getDatabase(source), MongoDBArchive.getTableName(appid)) ?
+				getDatabase(source).getCollection(MongoDBArchive.getTableName(appid)) : null;
+		MongoCollection<Document> toArchive = (fromArchive == null) ? null : MongoDBArchive.getOrCreateTable(appid, profile);
+
+		// the change streams are opened before the copy, so that they see every write made during the copy, deletes too
+		MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes = MongoDBMigrations.watch(from);
+		MongoChangeStreamCursor<ChangeStreamDocument<Document>> archiveChanges = (fromArchive == null) ? null : MongoDBMigrations.watch(fromArchive);
+		long copied;
+		try {
+			copied = MongoDBMigrations.copy(profile, from, to, Filters.empty());
+			if (fromArchive != null) {
+				copied += MongoDBMigrations.copy(profile, fromArchive, toArchive, Filters.empty());
+			}
+			storeRoute(appid, profile);
+			logger.info("App '{}' is now routed to profile '{}', waiting for all nodes to switch.", appid, profile);
+			MongoDBMigrations.pause(TimeUnit.SECONDS.toMillis(getRefreshSec()));
+			if (changes == null) {
+				logger.warn("Change streams aren't available on profile '{}', objects deleted while app '{}' was moved "
+						+ "may come back.", source, appid);
+				copied += MongoDBMigrations.copy(profile, from, to, Filters.or(Filters.gte(Config._TIMESTAMP, start), Filters.gte(Config._UPDATED, start)));
+			} else {
+				copied += MongoDBMigrations.replay(source, profile, MongoDBMigrations.drain(changes), from, to);
+			}
+			if (archiveChanges != null) {
+				copied += MongoDBMigrations.replay(source, profile, MongoDBMigrations.drain(archiveChanges), fromArchive, toArchive);
+			} else if (fromArchive != null) {
+				copied += MongoDBMigrations.copy(profile, fromArchive, toArchive, Filters.empty());
+			}
+		} finally {
+			MongoDBMigrations.close(changes);
+			MongoDBMigrations.close(archiveChanges);
+		}
+		// caches filled from the old cluster during the move
+		MongoDBReadCoalescer.invalidateAll(appid);
+		MongoDBKeyFilter.invalidate(appid);
+		if (MongoDBCounters.isMaterialized()) {
+			MongoDBCounters.rebuildCounters(appid);
+		}
+		logger.info("Moved app '{}' from profile '{}' to '{}', {} objects copied. Table '{}' in profile '{}' can now be dropped.",
+				appid, source, profile, copied, table, source);
+		return copied;
+	}
+
+	/**
+	 * Runs {@link #moveApp(String, String)} in the background.
+	 * @param appid app identifier
+	 * @param profile the target profile
+	 * @return a future number of objects copied
+	 */
+	public static CompletableFuture<Long> moveAppAsync(String appid, String profile) {
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		MongoDBExecutors.invokeLater(profile, () -> {
+			try {
+				result.complete(moveApp(appid, profile));
+			} catch (Exception e) {
+				logger.error("Moving app '{}' to profile '{}' failed: {}", appid, profile, e.getMessage());
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	private static void storeRoute(String appid, String profile) {
+		getRoutesTable().replaceOne(Filters.eq(ID, appid), new Document(ID, appid).append(PROFILE, profile).
+				append(Config._TIMESTAMP, System.currentTimeMillis()), new ReplaceOptions().upsert(true));
+		Map<String, String> routes = new HashMap<>(storedRoutes);
+		routes.put(appid, profile);
+		storedRoutes = routes;
+		ROUTES.remove(appid);
+	}
+
+	private static void refreshStoredRoutes() {
+		long loaded = ROUTES_LOADED.get();
+		long now = System.currentTimeMillis();
+		// one caller reloads the routes, the others keep using the old ones meanwhile
+		if (now - loaded < TimeUnit.SECONDS.toMillis(getRefreshSec()) || !ROUTES_LOADED.compareAndSet(loaded, now)) {
+			return;
+		}
+		try {
+			Map<String, String> routes = new HashMap<>();
+			getRoutesTable().find().forEach(doc -> routes.put(doc.getString(ID), doc.getString(PROFILE)));
+			storedRoutes = routes;
+			ROUTES.clear();
+		} catch (Exception e) {
+			logger.warn("Failed to load the stored app routes: {}", e.getMessage());
+		}
+	}
+
+	private static String resolve(String appid) {
+		String profile = storedRoutes.get(appid);
+		if (profile == null) {
+			profile = parseRoutes(MongoDBUtils.getConfigParam("routes", "")).get(appid);
+		}
+		if (profile == null) {
+			profile = hash(appid, StringUtils.split(MongoDBUtils.getConfigParam("route_hash_profiles", ""), ", "));
+		}
+		if (!isDeclared(profile)) {
+			throw new IllegalStateException("App '" + appid + "' is routed to an unknown connection profile '" + profile + "'.");
+		}
+		return profile;
+	}
+
+	/**
+	 * Rendezvous hashing - adding a profile only moves the apps which now hash to it.
+	 */
+	private static String hash(String appid, String[] profiles) {
+		String best = DEFAULT_PROFILE;
+		long bestWeight = Long.MIN_VALUE;
+		for (String profile : profiles) {
+			long weight = mix((profile + "/" + appid).hashCode());
+			if (weight > bestWeight) {
+				best = profile;
+				bestWeight = weight;
+			}
+		}
+		return best;
+	}
+
+	private static long mix(long hash) {
+		// murmur3 64-bit finalizer
+		long h = hash;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static Map<String, String> parseRoutes(String conf) {
+		Map<String, String> routes = new HashMap<>();
+		for (String route : StringUtils.split(conf, ", ")) {
+			String[] parts = StringUtils.split(route, ':');
+			if (parts.length == 2) {
+				routes.put(parts[0], parts[1]);
+			}
+		}
+		return routes;
+	}
+
+	private static boolean isDeclared(String profile) {
+		return DEFAULT_PROFILE.equals(profile) || Arrays.asList(StringUtils.split(
+				MongoDBUtils.getConfigParam("connection_profiles", ""), ", ")).contains(profile);
+	}
+
+	private static MongoClient connect(String profile) {
+		String uri = getProfileParam(profile, "uri", "");
+		if (!isDeclared(profile) || StringUtils.isBlank(uri)) {
+			throw new IllegalStateException("Connection profile '" + profile + "' isn't configured.");
+		}
+		logger.info("MongoDB profile '{}' uri: {}", profile, uri.replaceAll("mongodb(\\+srv)?://.*@", "mongodb$1://<user:password>@"));
+		int poolSize = NumberUtils.toInt(getProfileParam(profile, "connection_pool_size", ""),
+				MongoDBUtils.getConfigInt("connection_pool_size", 0));
+		return MongoDBUtils.createClient(profile, MongoDBUtils.clientSettings(poolSize).applyConnectionString(new ConnectionString(uri)).build());
+	}
+
+	private static String getProfileParam(String profile, String key, String defaultValue) {
+		return MongoDBUtils.getConfigParam("profile." + profile + "." + key, defaultValue);
+	}
+
+	private static MongoCollection<Document> getRoutesTable() {
+		String root = Para.getConfig().getRootAppIdentifier();
+		return MongoDBUtils.getClient().getCollection(MongoDBUtils.getTableNameForAppid(root) + ROUTES_SUFFIX);
+	}
+
+	private static int getRefreshSec() {
+		return Math.max(1, MongoDBUtils.getConfigInt("route_refresh_sec", 30));
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A training run for an AppCDS archive, which loads the classes of this plugin and of the driver that are
+ * used on every request, so that they can be dumped with {@code -XX:ArchiveClassesAtExit} and mapped from
+ * the archive at startup instead of being loaded and verified again. It doesn't need a database, unless
+ * {@code --connect} is given, in which case it also connects and pings the server configured for Para.
+ */
+final class MongoDBTraining {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBTraining.class);
+
+	private MongoDBTraining() { }
+
+	/**
+	 * Runs the training.
+	 * @param args {@code --connect} to also connect to MongoDB
+	 */
+	public static void main(String[] args) {
+		long start = System.currentTimeMillis();
+		// registers the app listeners, like on startup
+		MongoDBDAO dao = new MongoDBDAO();
+		String id = MongoDBUtils.generateNewId();
+		MongoDBUtils.toStoredId(id);
+		MongoDBUtils.getTableNameForAppid("training");
+		MongoDBUtils.clientSettings(MongoDBUtils.getConfigInt("connection_pool_size", 0)).build();
+
+		Bson filter = Filters.and(MongoDBFilter.create().type("training").timestampBefore(start).toBson("training"),
+				Filters.in("_id", List.of(id)), Filters.not(Filters.exists(MongoDBUtils.EXPIRES_AT)));
+		encode(filter);
+		encode(Projections.include("_id"));
+		encode(Sorts.ascending("_id"));
+		encode(Updates.combine(Updates.set("name", "training"), Updates.inc("votes", 1)));
+		MongoDBFieldUpdate.create().set("name", "training").inc("votes", 1).getOperations();
+
+		Document doc = new Document("_id", id).append("name", "training").append("properties", Map.of("key", List.of(1, 2)));
+		RawBsonDocument raw = new RawBsonDocument(doc, new DocumentCodec());
+		raw.decode(new DocumentCodec());
+		MongoDBCompression.isCompressed(doc.get("properties"));
+
+		if (List.of(args).contains("--connect")) {
+			MongoDBUtils.getClient().runCommand(new Document("ping", 1));
+			dao.read("training", id);
+			MongoDBUtils.shutdownClient();
+		}
+		logger.info("Training run finished in {} ms.", System.currentTimeMillis() - start);
+	}
+
+	private static void encode(Bson bson) {
+		BsonDocument doc = bson.toBsonDocument(BsonDocument.class, MongoDBUtils.clientSettings(1).build().getCodecRegistry());
+		new DocumentCodec().encode(new BsonDocumentWriter(new BsonDocument()), new Document(doc), EncoderContext.builder().build());
+	}
+}
@@ -24,15 +24,42 @@ import com.erudika.para.core.utils.Para;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoNamespace;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.ClusteredIndexOptions;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.Sorts;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.BsonType;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +71,14 @@ import org.slf4j.LoggerFactory;
 public final class MongoDBUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(MongoDBUtils.class);
+	private static final String ID = "_id";
+	private static final String CLONE_SUFFIX = ".clone";
+	private static final Map<String, Map<String, String>> TYPE_POLICIES = new ConcurrentHashMap<>();
+	private static final Pattern COMPACT_ID_PATTERN = Pattern.compile("^[0-9a-f]{24}$");
 	private static MongoClient mongodbClient;
-	private static MongoDatabase mongodb;
+	private static volatile MongoDatabase mongodb;
+	private static final Map<String, Boolean> CLIENT_BULK_WRITE_SUPPORTED = new ConcurrentHashMap<>();
+	private static final Map<String, Integer> CONNECTION_POOL_SIZES = new ConcurrentHashMap<>();
 
 	static {
 		// Fix for exceptions from Spring Boot when using a different MongoDB host than localhost.
@@ -64,7 +97,16 @@ public final class MongoDBUtils {
 		if (mongodb != null) {
 			return mongodb;
 		}
+		// requests arriving while the bootstrap is connecting wait for it instead of creating a second client
+		synchronized (MongoDBUtils.class) {
+			if (mongodb == null) {
+				connect();
+			}
+			return mongodb;
+		}
+	}
 
+	private static void connect() {
 		String dbUri = Para.getConfig().mongoConnectionUri();
 		String dbHost = Para.getConfig().mongoHost();
 		int dbPort = Para.getConfig().mongoPort();
@@ -74,13 +116,13 @@ public final class MongoDBUtils {
 		String dbUser = Para.getConfig().mongoAuthUser();
 		String dbPass = Para.getConfig().mongoAuthPassword();
 
-		MongoClientSettings.Builder options = MongoClientSettings.builder().applyToSslSettings(b ->
-				b.enabled(sslEnabled).invalidHostNameAllowed(sslAllowAll));
+		MongoClientSettings.Builder options = clientSettings(getConfigInt("connection_pool_size", 0)).
+				applyToSslSettings(b -> b.enabled(sslEnabled).invalidHostNameAllowed(sslAllowAll));
 
 		if (!StringUtils.isBlank(dbUri)) {
 			logger.info("MongoDB uri: " + dbUri.replaceAll("mongodb://.*@", "mongodb://<user:password>@") + ", database: " + dbName);
 			options.applyConnectionString(new ConnectionString(dbUri));
-			mongodbClient = MongoClients.create(options.build());
+			mongodbClient = createClient(MongoDBRouting.DEFAULT_PROFILE, options.build());
 		} else {
 			logger.info("MongoDB host: " + dbHost + ":" + dbPort + ", database: " + dbName);
 			ServerAddress s = new ServerAddress(dbHost, dbPort);
@@ -88,7 +130,7 @@ public final class MongoDBUtils {
 			if (!StringUtils.isBlank(dbUser) && !StringUtils.isBlank(dbPass)) {
 				options.credential(MongoCredential.createCredential(dbUser, dbName, dbPass.toCharArray()));
 			}
-			mongodbClient = MongoClients.create(options.build());
+			mongodbClient = createClient(MongoDBRouting.DEFAULT_PROFILE, options.build());
 		}
 
 		mongodb = mongodbClient.getDatabase(dbName);
@@ -102,8 +144,51 @@ public final class MongoDBUtils {
 				shutdownClient();
 			}
 		});
+	}
 
-		return mongodb;
+	/**
+	 * Returns the client settings shared by all connection profiles.
+	 * @param poolSize max. number of connections per server, 0 for the driver default
+	 * @return a settings builder
+	 */
+	static MongoClientSettings.Builder clientSettings(int poolSize) {
+		MongoClientSettings.Builder options = MongoClientSettings.builder();
+		int serverSelectionTimeoutMs = getConfigInt("server_selection_timeout_ms", 0);
+		if (serverSelectionTimeoutMs > 0) {
+			// fail faster than the default 30s when there's no primary, e.g. during elections
+			options.applyToClusterSettings(b -> b.serverSelectionTimeout(serverSelectionTimeoutMs, TimeUnit.MILLISECONDS));
+		}
+		if (poolSize > 0) {
+			options.applyToConnectionPoolSettings(b -> b.maxSize(poolSize));
+		}
+		return options;
+	}
+
+	/**
+	 * Creates the client of a connection profile.
+	 * @param profile profile name
+	 * @param settings client settings
+	 * @return a client
+	 */
+	static MongoClient createClient(String profile, MongoClientSettings settings) {
+		// parallel DAO operations are limited by the size of the pool, including any maxPoolSize from the URI
+		CONNECTION_POOL_SIZES.put(profile, settings.getConnectionPoolSettings().getMaxSize());
+		if (MongoDBDiagnostics.isEnabled()) {
+			// slow queries are explained on the cluster which ran them
+			return MongoClients.create(MongoClientSettings.builder(settings).addCommandListener(new MongoDBDiagnostics(profile)).build());
+		}
+		return MongoClients.create(settings);
+	}
+
+	/**
+	 * Returns the max. number of connections per server, as configured on the client of a connection profile.
+	 * Connects the profile, if it isn't connected yet.
+	 * @param profile profile name
+	 * @return the size of the connection pool
+	 */
+	static int getConnectionPoolSize(String profile) {
+		MongoDBRouting.getMongoClient(profile);
+		return CONNECTION_POOL_SIZES.getOrDefault(profile, 0);
 	}
 
 	/**
@@ -114,7 +199,20 @@ public final class MongoDBUtils {
 		if (mongodbClient != null) {
 			mongodbClient.close();
 			mongodbClient = null;
+			mongodb = null;
 		}
+		MongoDBRouting.shutdown();
+		CLIENT_BULK_WRITE_SUPPORTED.clear();
+	}
+
+	/**
+	 * Returns the database holding the table of an app, which depends on the connection profile
+	 * the app is routed to. See {@link MongoDBRouting}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a database
+	 */
+	public static MongoDatabase getClient(String appid) {
+		return MongoDBRouting.getDatabase(MongoDBRouting.getProfile(appid));
 	}
 
 	/**
@@ -127,35 +225,52 @@ public final class MongoDBUtils {
 			return false;
 		}
 		try {
-			appid = getTableNameForAppid(appid);
-			MongoIterable<String> collectionNames = getClient().listCollectionNames();
-			for (final String name : collectionNames) {
-				if (name.equalsIgnoreCase(appid)) {
-					return true;
-				}
-			}
-			return false;
+			return existsTable(getClient(appid), getTableNameForAppid(appid));
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
+	static boolean existsTable(MongoDatabase db, String table) {
+		// only the one collection name is fetched, not the whole list
+		return db.listCollectionNames().filter(Filters.regex("name", "^" + Pattern.quote(table) + "$", "i")).first() != null;
+	}
+
 	/**
 	 * Creates a table in MongoDB.
 	 * @param appid name of the {@link com.erudika.para.core.App}
 	 * @return true if created
 	 */
 	public static boolean createTable(String appid) {
-		if (StringUtils.isBlank(appid) || StringUtils.containsWhitespace(appid) || existsTable(appid)) {
+		return createTable(appid, MongoDBRouting.getProfile(appid));
+	}
+
+	/**
+	 * Creates the table for an app on the cluster of a connection profile.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param profile connection profile
+	 * @return true if created
+	 */
+	static boolean createTable(String appid, String profile) {
+		if (StringUtils.isBlank(appid) || StringUtils.containsWhitespace(appid)) {
 			return false;
 		}
 		try {
+			MongoDatabase db = MongoDBRouting.getDatabase(profile);
 			String table = getTableNameForAppid(appid);
-			getClient().createCollection(table);
-			// *** Don't need to create a secondary index here until when will be developed a full "Search" implementation for MongoDB ***
-			// create a default seconday index for parentid field as string
-			// getClient().getCollection(appid).createIndex(Indexes.text(Config._PARENTID));
-			logger.info("Created MongoDB table '{}'.", table);
+			if (existsTable(db, table)) {
+				return false;
+			}
+			if (isClusteredTablesEnabled()) {
+				db.createCollection(table, clusteredTableOptions());
+			} else {
+				db.createCollection(table);
+			}
+			if (isShardingEnabled()) {
+				shardTable(appid, profile);
+			}
+			createIndexes(db.getCollection(table));
+			logger.info("Created MongoDB table '{}' in profile '{}'.", table, profile);
 		} catch (Exception e) {
 			logger.error(null, e);
 			return false;
@@ -163,6 +278,137 @@ public final class MongoDBUtils {
 		return true;
 	}
 
+	/**
+	 * Copies the objects of an app into another app, see {@link #copyApp(String, String, boolean, LongConsumer, String...)}.
+	 * Objects which already exist in the target app are replaced, the others are kept.
+	 * @param sourceAppid the app to copy from
+	 * @param targetAppid the app to copy to
+	 * @param types only copy objects of these types, or all objects if none are given
+	 * @return the number of objects copied
+	 */
+	public static long copyApp(String sourceAppid, String targetAppid, String... types) {
+		return copyApp(sourceAppid, targetAppid, false, null, types);
+	}
+
+	/**
+	 * Replaces the table of an app with a copy of the objects of another app, for example to set up a staging app.
+	 * See {@link #copyApp(String, String, boolean, LongConsumer, String...)}.
+	 * @param sourceAppid the app to copy from
+	 * @param targetAppid the app to replace
+	 * @param types only copy objects of these types, or all objects if none are given
+	 * @return the number of objects copied
+	 */
+	public static long cloneApp(String sourceAppid, String targetAppid, String... types) {
+		return copyApp(sourceAppid, targetAppid, true, null, types);
+	}
+
+	/**
+	 * Copies the objects of an app into the table of another app, with aggregation pipelines ({@code $merge})
+	 * which run on the server, so the objects never travel over the network. Objects are copied in ranges of
+	 * {@code para.mongodb.copy_batch_size} ids (default 10000), each with its own pipeline, so the copy can report
+	 * progress and a failed range is simply retried. The copies keep their ids and their {@code appid} is changed
+	 * to the target app. Afterwards the indexes of the target table are created and, if materialized, its counters
+	 * are rebuilt. Archived objects aren't copied. Both apps must be on the same cluster and must not share a table.
+	 * @param sourceAppid the app to copy from
+	 * @param targetAppid the app to copy to
+	 * @param replace if true, the target table is replaced: the objects are copied to a new table, which is then
+	 * renamed over the old one. Sharded tables can't be replaced, because they can't be renamed.
+	 * @param progress receives the number of objects copied so far after each range, can be null
+	 * @param types only copy objects of these types, or all objects if none are given
+	 * @return the number of objects copied
+	 */
+	public static long copyApp(String sourceAppid, String targetAppid, boolean replace, LongConsumer progress, String... types) {
+		String sourceTable = getTableNameForAppid(sourceAppid);
+		String targetTable = getTableNameForAppid(targetAppid);
+		if (StringUtils.isBlank(sourceTable) || StringUtils.isBlank(targetTable) || sourceTable.equals(targetTable)) {
+			throw new IllegalArgumentException("Can't copy app '" + sourceAppid + "' to app '" + targetAppid + "'.");
+		}
+		String cluster = MongoDBRouting.getProfile(sourceAppid);
+		if (!cluster.equals(MongoDBRouting.getProfile(targetAppid))) {
+			throw new IllegalArgumentException("Apps '" + sourceAppid + "' and '" + targetAppid + "' are on different clusters.");
+		}
+		if (replace && isShardingEnabled()) {
+			throw new IllegalStateException("Can't replace table '" + targetTable + "' - sharded tables can't be renamed.");
+		}
+		MongoDatabase db = getClient(sourceAppid);
+		String into = targetTable;
+		if (replace) {
+			// a copy left over from an interrupted clone is started over
+			into = targetTable + CLONE_SUFFIX;
+			db.getCollection(into).drop();
+			db.createCollection(into, isClusteredTablesEnabled() ? clusteredTableOptions() : new CreateCollectionOptions());
+		} else {
+			createTable(targetAppid);
+		}
+		if (isAppidInShardKey()) {
+			// $merge needs a unique index on the fields which identify a document
+			db.getCollection(into).createIndex(Indexes.ascending(Config._APPID, ID), new IndexOptions().unique(true));
+		}
+		Bson filter = Filters.eq(Config._APPID, sourceAppid);
+		if (types != null && types.length > 0) {
+			filter = Filters.and(filter, Filters.in(Config._TYPE, types));
+		}
+		long copied = copyRanges(cluster, db.getCollection(sourceTable), new MongoNamespace(db.getName(), into), filter, targetAppid, n -> {
+			logger.info("Copied {} objects from app '{}' to app '{}'.", n, sourceAppid, targetAppid);
+			if (progress != null) {
+				progress.accept(n);
+			}
+		});
+		MongoCollection<Document> target = db.getCollection(into);
+		createIndexes(target);
+		if (replace) {
+			target.renameCollection(new MongoNamespace(db.getName(), targetTable), new RenameCollectionOptions().dropTarget(true));
+		}
+		MongoDBReadCoalescer.invalidateAll(targetAppid);
+		MongoDBKeyFilter.invalidate(targetAppid);
+		if (MongoDBCounters.isMaterialized()) {
+			MongoDBCounters.rebuildCounters(targetAppid);
+		}
+		return copied;
+	}
+
+	private static long copyRanges(String cluster, MongoCollection<Document> source, MongoNamespace into, Bson filter,
+			String targetAppid, LongConsumer progress) {
+		int batchSize = Math.max(1, getConfigInt("copy_batch_size", 10000));
+		MergeOptions merge = new MergeOptions().whenMatched(MergeOptions.WhenMatched.REPLACE).
+				whenNotMatched(MergeOptions.WhenNotMatched.INSERT).
+				uniqueIdentifier(isAppidInShardKey() ? List.of(Config._APPID, ID) : List.of(ID));
+		long copied = 0;
+		Object lower = null;
+		Document upper;
+		do {
+			Bson from = (lower == null) ? filter : Filters.and(filter, idAfter(lower));
+			// the last id of the next range - the walk over the _id index stays on the server
+			upper = MongoDBResilience.execute(cluster, () -> source.find(from).sort(Sorts.ascending(ID)).
+					projection(Projections.include(ID)).skip(batchSize - 1).limit(1).first());
+			Bson range = (upper == null) ? from : Filters.and(from, idUpTo(upper.get(ID)));
+			MongoDBResilience.execute(cluster, () -> {
+				source.aggregate(List.of(Aggregates.match(range), Aggregates.set(new Field<>(Config._APPID, targetAppid)),
+						Aggregates.merge(into, merge))).toCollection();
+				return null;
+			});
+			copied += (upper == null) ? source.countDocuments(range) : batchSize;
+			progress.accept(copied);
+			lower = (upper == null) ? null : upper.get(ID);
+		} while (upper != null);
+		return copied;
+	}
+
+	/**
+	 * Matches ids after an id. Comparisons only match values of the same type, but string ids sort before
+	 * ObjectIds, so after a string id come all ObjectIds.
+	 */
+	private static Bson idAfter(Object id) {
+		return (id instanceof String) ? Filters.or(Filters.gt(ID, id), Filters.type(ID, BsonType.OBJECT_ID)) : Filters.gt(ID, id);
+	}
+
+	/**
+	 * Matches ids up to and including an id. Up to an ObjectId come all string ids.
+	 */
+	private static Bson idUpTo(Object id) {
+		return (id instanceof ObjectId) ? Filters.or(Filters.lte(ID, id), Filters.type(ID, BsonType.STRING)) : Filters.lte(ID, id);
+	}
+
 	/**
 	 * Deletes the main table from MongoDB.
 	 * @param appid name of the {@link com.erudika.para.core.App}
@@ -177,6 +423,7 @@ public final class MongoDBUtils {
 			if (collection != null) {
 				collection.drop();
 			}
+			MongoDBCounters.dropCounters(appid);
 			logger.info("Deleted MongoDB table '{}'.", getTableNameForAppid(appid));
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -186,17 +433,208 @@ public final class MongoDBUtils {
 	}
 
 	/**
-	 * Gives count information about a MongoDB table.
+	 * Shards a table on the configured shard key. This requires a sharded cluster, i.e. the client
+	 * must be connected to {@code mongos}. The shard key is either a hashed {@code _id} (default)
+	 * or {@code {appid: 1, _id: 1}} when {@code para.mongodb.shard_key = "appid"}. The latter is
+	 * only useful for tables shared by many apps. The server doesn't presplit a range key, so the apps
+	 * listed in {@code para.mongodb.shard_big_apps} are given chunks of their own, spread over the shards.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if the table was sharded
+	 */
+	public static boolean shardTable(String appid) {
+		return shardTable(appid, MongoDBRouting.getProfile(appid));
+	}
+
+	private static boolean shardTable(String appid, String profile) {
+		if (StringUtils.isBlank(appid)) {
+			return false;
+		}
+		try {
+			String dbName = MongoDBRouting.getDatabase(profile).getName();
+			String namespace = dbName + "." + getTableNameForAppid(appid);
+			MongoDatabase admin = MongoDBRouting.getMongoClient(profile).getDatabase("admin");
+			admin.runCommand(new Document("enableSharding", dbName));
+			Document shardKey = isAppidInShardKey() ?
+					new Document(Config._APPID, 1).append(ID, 1) : new Document(ID, "hashed");
+			// an empty collection with a hashed key is presplit by the server, one chunk per shard
+			admin.runCommand(new Document("shardCollection", namespace).append("key", shardKey));
+			logger.info("Sharded MongoDB table '{}' with shard key {}.", namespace, shardKey.toJson());
+			if (isAppidInShardKey()) {
+				presplitBigApps(admin, namespace);
+			}
+		} catch (Exception e) {
+			logger.error("Failed to shard table '{}': {}", getTableNameForAppid(appid), e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a new table sharded on {@code {appid: 1, _id: 1}} at the bounds of each big app, and moves
+	 * the chunks of those apps to the shards in turn, so they don't all start on the primary shard.
+	 */
+	private static void presplitBigApps(MongoDatabase admin, String namespace) {
+		Set<String> bigApps = new LinkedHashSet<>(List.of(StringUtils.split(getConfigParam("shard_big_apps", ""), ", ")));
+		if (bigApps.isEmpty()) {
+			return;
+		}
+		try {
+			List<String> shards = admin.runCommand(new Document("listShards", 1)).getList("shards", Document.class).
+					stream().map(shard -> shard.getString(ID)).toList();
+			int i = 0;
+			for (String app : bigApps) {
+				// each big app gets the range from {appid: app, _id: MinKey} to {appid: app, _id: MaxKey}
+				admin.runCommand(new Document("split", namespace).
+						append("middle", new Document(Config._APPID, app).append(ID, new MinKey())));
+				admin.runCommand(new Document("split", namespace).
+						append("middle", new Document(Config._APPID, app).append(ID, new MaxKey())));
+				if (shards.size() > 1) {
+					admin.runCommand(new Document("moveChunk", namespace).
+							append("find", new Document(Config._APPID, app).append(ID, "")).
+							append("to", shards.get(i++ % shards.size())));
+				}
+			}
+			logger.info("Presplit MongoDB table '{}' for {} big apps over {} shards.", namespace, bigApps.size(),
+					shards.size());
+		} catch (Exception e) {
+			logger.warn("Failed to presplit table '{}': {}", namespace, e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns true if new tables should be sharded, i.e. {@code para.mongodb.sharding_enabled = true}.
+	 * @return true if sharding is enabled
+	 */
+	public static boolean isShardingEnabled() {
+		return getConfigBoolean("sharding_enabled", false);
+	}
+
+	/**
+	 * Returns true if tables are sharded on {@code {appid: 1, _id: 1}}.
+	 * @return true if the appid is part of the shard key
+	 */
+	static boolean isAppidInShardKey() {
+		return isShardingEnabled() && Config._APPID.equalsIgnoreCase(getConfigParam("shard_key", ID));
+	}
+
+	/**
+	 * Name of the field holding the expiration date of objects with a TTL.
+	 */
+	static final String EXPIRES_AT = "_expiresAt";
+
+	/**
+	 * Name of the field which schema version 1 paginates on.
+	 */
+	static final String OBJECT_ID = "_ObjectId";
+
+	/**
+	 * Returns the time-to-live for objects of a given type, configured with
+	 * {@code para.mongodb.ttl = "type1:seconds, appid/type2:seconds"}.
+	 * Expired objects are removed by the TTL monitor of MongoDB, which runs every 60 seconds.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the object type
+	 * @return the TTL in seconds, or 0 if objects of that type never expire
+	 */
+	public static long getTTL(String appid, String type) {
+		return NumberUtils.toLong(getTypePolicy("ttl", appid, type), 0);
+	}
+
+	/**
+	 * Returns true if expired objects, which have not yet been removed by the server, should be skipped on reads.
+	 * @return the value of {@code para.mongodb.ttl_filter_expired_on_read}
+	 */
+	public static boolean isExpiredFilteredOnRead() {
+		return getConfigBoolean("ttl_filter_expired_on_read", false);
+	}
+
+	static Date getExpiryDate(String appid, String type) {
+		long ttl = getTTL(appid, type);
+		return (ttl > 0) ? new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl)) : null;
+	}
+
+	/**
+	 * Creates the secondary indexes used by this plugin. Safe to call on existing tables.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if the indexes were created or already exist
+	 */
+	public static boolean createIndexes(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return false;
+		}
+		try {
+			createIndexes(getTable(appid));
+		} catch (Exception e) {
+			logger.error(null, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if new tables should be clustered collections, i.e. {@code para.mongodb.clustered_collections_enabled = true}.
+	 * Documents in a clustered collection are stored in {@code _id} order, so there is no separate {@code _id} index
+	 * to update on insert and to look up on reads. Requires MongoDB 5.3 or later.
+	 * @return true if clustered collections are enabled
+	 */
+	public static boolean isClusteredTablesEnabled() {
+		return getConfigBoolean("clustered_collections_enabled", false);
+	}
+
+	/**
+	 * Checks if the table of an app is a clustered collection. A table keeps its layout when the setting changes,
+	 * existing tables are converted with {@link MongoDBMigrations#migrateToClusteredTable(String)}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if the table is clustered on {@code _id}
+	 */
+	public static boolean isClusteredTable(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return false;
+		}
+		Document info = getClient(appid).listCollections().filter(Filters.eq("name", getTableNameForAppid(appid))).first();
+		Document options = (info == null) ? null : info.get("options", Document.class);
+		return options != null && options.containsKey("clusteredIndex");
+	}
+
+	static CreateCollectionOptions clusteredTableOptions() {
+		return new CreateCollectionOptions().clusteredIndexOptions(new ClusteredIndexOptions(new Document(ID, 1), true));
+	}
+
+	static void createIndexes(MongoCollection<Document> table) {
+		// *** Don't need to create a parentid index here until when will be developed a full "Search" implementation for MongoDB ***
+		// the type index keeps per-type counts from scanning the whole collection
+		table.createIndex(Indexes.ascending(Config._TYPE));
+		// TTL index - only objects with an expiration date are indexed
+		table.createIndex(Indexes.ascending(EXPIRES_AT), new IndexOptions().expireAfter(0L, TimeUnit.SECONDS).sparse(true));
+	}
+
+	/**
+	 * Gives count information about a MongoDB table. The count is an estimate taken from the
+	 * collection metadata and doesn't require a collection scan. This used to be an exact count,
+	 * which is still available from {@link #getTableCount(String, boolean)}.
 	 * @param appid name of the collection
 	 * @return a long
 	 */
 	public static long getTableCount(final String appid) {
+		return getTableCount(appid, false);
+	}
+
+	/**
+	 * Gives count information about a MongoDB table.
+	 * @param appid name of the collection
+	 * @param exact if true, documents are counted with {@code countDocuments()}, which scans the collection,
+	 * otherwise the estimated count from the collection metadata is returned
+	 * @return a long
+	 */
+	public static long getTableCount(final String appid, boolean exact) {
 		if (StringUtils.isBlank(appid)) {
 			return -1;
 		}
 		try {
 			MongoCollection<Document> collection = getTable(appid);
-			return (collection == null) ? 0 : collection.countDocuments();
+			if (collection == null) {
+				return 0;
+			}
+			return exact ? collection.countDocuments() : collection.estimatedDocumentCount();
 		} catch (Exception e) {
 			logger.error(null, e);
 		}
@@ -210,13 +648,68 @@ public final class MongoDBUtils {
 	 */
 	public static MongoCollection<Document> getTable(String appid) {
 		try {
-			return getClient().getCollection(getTableNameForAppid(appid));
+			return getClient(appid).getCollection(getTableNameForAppid(appid));
 		} catch (Exception e) {
 			logger.error(null, e);
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the namespace (database and collection name) of the table for an app.
+	 * @param appid app identifier
+	 * @return a namespace
+	 */
+	static MongoNamespace getNamespace(String appid) {
+		return new MongoNamespace(getClient(appid).getName(), getTableNameForAppid(appid));
+	}
+
+	/**
+	 * Returns the MongoDB client of the default connection profile.
+	 * @return the client
+	 */
+	static MongoClient getMongoClient() {
+		getClient();
+		return mongodbClient;
+	}
+
+	/**
+	 * Returns the MongoDB client for an app, which is needed for operations spanning many collections.
+	 * @param appid app identifier
+	 * @return the client of the connection profile the app is routed to
+	 */
+	static MongoClient getMongoClient(String appid) {
+		return MongoDBRouting.getMongoClient(MongoDBRouting.getProfile(appid));
+	}
+
+	/**
+	 * Checks if writes to many collections can be sent with a single {@code bulkWrite} command,
+	 * which requires MongoDB 8.0 or later. Can be turned off with {@code para.mongodb.client_bulk_write_enabled}.
+	 * @return true if supported by the server
+	 */
+	public static boolean isClientBulkWriteSupported() {
+		return isClientBulkWriteSupported(MongoDBRouting.DEFAULT_PROFILE);
+	}
+
+	static boolean isClientBulkWriteSupported(String profile) {
+		if (!getConfigBoolean("client_bulk_write_enabled", true)) {
+			return false;
+		}
+		Boolean supported = CLIENT_BULK_WRITE_SUPPORTED.get(profile);
+		if (supported == null) {
+			try {
+				Document hello = MongoDBRouting.getDatabase(profile).runCommand(new Document("hello", 1));
+				// wire version 25 is MongoDB 8.0
+				supported = hello.get("maxWireVersion", Number.class).intValue() >= 25;
+				CLIENT_BULK_WRITE_SUPPORTED.put(profile, supported);
+			} catch (Exception e) {
+				logger.warn("Failed to check the server version: {}", e.getMessage());
+				return false;
+			}
+		}
+		return supported;
+	}
+
 	/**
 	 * Lists all table names for this account.
 	 * @return a list of MongoDB tables
@@ -240,6 +733,127 @@ public final class MongoDBUtils {
 		}
 	}
 
+	/**
+	 * Reads a plugin configuration property, i.e. {@code para.mongodb.[key]}.
+	 * @param key the key, without the {@code mongodb.} prefix
+	 * @param defaultValue default value
+	 * @return the value of the property
+	 */
+	static String getConfigParam(String key, String defaultValue) {
+		Object value = Para.getConfig().getConfigValue("mongodb." + key, defaultValue);
+		return (value == null) ? defaultValue : value.toString();
+	}
+
+	static boolean getConfigBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(getConfigParam(key, Boolean.toString(defaultValue)));
+	}
+
+	static int getConfigInt(String key, int defaultValue) {
+		return NumberUtils.toInt(getConfigParam(key, Integer.toString(defaultValue)), defaultValue);
+	}
+
+	/**
+	 * Reads a per-type setting in the form {@code "type1:value1, appid/type2:value2"}.
+	 * Entries prefixed with an appid only apply to that app and take precedence over the others.
+	 * @param key the key, without the {@code mongodb.} prefix
+	 * @param appid an app identifier
+	 * @param type the object type
+	 * @return the value for that type or null
+	 */
+	static String getTypePolicy(String key, String appid, String type) {
+		String conf = getConfigParam(key, "");
+		if (StringUtils.isBlank(conf) || StringUtils.isBlank(type)) {
+			return null;
+		}
+		Map<String, String> policies = TYPE_POLICIES.computeIfAbsent(conf, MongoDBUtils::parseTypePolicies);
+		String value = policies.get(appid + "/" + type);
+		return (value == null) ? policies.get(type) : value;
+	}
+
+	/**
+	 * Returns the types which have a per-type setting for an app, either for all apps or for that app only.
+	 * @param key the key, without the {@code mongodb.} prefix
+	 * @param appid an app identifier
+	 * @return a set of types
+	 */
+	static Set<String> getTypePolicyTypes(String key, String appid) {
+		String conf = getConfigParam(key, "");
+		if (StringUtils.isBlank(conf)) {
+			return Set.of();
+		}
+		Set<String> types = new LinkedHashSet<>();
+		for (String type : TYPE_POLICIES.computeIfAbsent(conf, MongoDBUtils::parseTypePolicies).keySet()) {
+			if (!type.contains("/")) {
+				types.add(type);
+			} else if (type.startsWith(appid + "/")) {
+				types.add(StringUtils.substringAfter(type, "/"));
+			}
+		}
+		return types;
+	}
+
+	private static Map<String, String> parseTypePolicies(String conf) {
+		Map<String, String> policies = new HashMap<>();
+		for (String policy : StringUtils.split(conf, ',')) {
+			String type = StringUtils.trimToEmpty(StringUtils.substringBeforeLast(policy, ":"));
+			String value = StringUtils.trimToEmpty(StringUtils.substringAfterLast(policy, ":"));
+			if (!type.isEmpty() && !value.isEmpty()) {
+				policies.put(type, value);
+			}
+		}
+		return policies;
+	}
+
+	/**
+	 * Returns the version of the storage schema for new writes. In version 1 (default) every document has an
+	 * {@code _ObjectId} field, which is used for pagination. Version 2 drops that field and paginates on {@code _id}.
+	 * Migrate existing tables with {@link MongoDBMigrations#migrateToSchemaV2(String)}.
+	 * @return the value of {@code para.mongodb.schema_version}
+	 */
+	public static int getSchemaVersion() {
+		return getConfigInt("schema_version", 1);
+	}
+
+	/**
+	 * Returns true if ids generated by {@link #generateNewId()} are stored as native 12-byte ObjectIds in {@code _id},
+	 * instead of 24-character strings. All other ids are always stored as strings.
+	 * @return the value of {@code para.mongodb.compact_ids_enabled}
+	 */
+	public static boolean isCompactIdsEnabled() {
+		return getConfigBoolean("compact_ids_enabled", false);
+	}
+
+	/**
+	 * Returns true if an id is stored as an ObjectId, i.e. compact ids are enabled and the id
+	 * is the hex form of an ObjectId, exactly as returned by {@link #generateNewId()}.
+	 * @param id an object id
+	 * @return true if stored as an ObjectId
+	 */
+	static boolean isCompactId(String id) {
+		return id != null && isCompactIdsEnabled() && COMPACT_ID_PATTERN.matcher(id).matches();
+	}
+
+	/**
+	 * Converts an object id to the value stored in {@code _id}.
+	 * @param id an object id
+	 * @return an ObjectId or the id itself
+	 */
+	static Object toStoredId(String id) {
+		return isCompactId(id) ? new ObjectId(id) : id;
+	}
+
+	/**
+	 * Converts a value stored in {@code _id} back to the object id.
+	 * @param storedId the value of {@code _id}
+	 * @return the object id
+	 */
+	static String fromStoredId(Object storedId) {
+		if (storedId instanceof ObjectId) {
+			return ((ObjectId) storedId).toHexString();
+		}
+		return (storedId == null) ? null : storedId.toString();
+	}
+
 	/**
 	 * Create a new unique objectid for MongoDB.
 	 * @return the objectid as string
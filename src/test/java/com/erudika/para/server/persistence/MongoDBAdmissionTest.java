@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.server.persistence.MongoDBAdmission.Permit;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MongoDBAdmissionTest {
+
+	private static final AtomicInteger APPS = new AtomicInteger();
+	private ExecutorService threads;
+	private String app;
+
+	@BeforeEach
+	public void setUp() {
+		// each test gets bulkheads of its own
+		app = "admission" + APPS.incrementAndGet();
+		threads = Executors.newCachedThreadPool();
+		System.setProperty("para.mongodb.tenant_max_point_ops", "2");
+		System.setProperty("para.mongodb.tenant_max_bulk_ops", "1");
+		System.setProperty("para.mongodb.tenant_queue_timeout_ms", "0");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		threads.shutdownNow();
+		System.clearProperty("para.mongodb.tenant_max_point_ops");
+		System.clearProperty("para.mongodb.tenant_max_bulk_ops");
+		System.clearProperty("para.mongodb.tenant_queue_timeout_ms");
+		System.clearProperty("para.mongodb.tenant_max_queued");
+	}
+
+	@Test
+	public void testLimit() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		hold(() -> MongoDBAdmission.point(app), release);
+		hold(() -> MongoDBAdmission.point(app), release);
+		// with a timeout of 0, operations over the limit are rejected right away
+		long start = System.nanoTime();
+		assertThrows(RejectedExecutionException.class, () -> MongoDBAdmission.point(app));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+		assertEquals(2, stat("point " + app, "active"));
+		assertEquals(1, stat("point " + app, "rejected"));
+
+		// other apps, and batches of the same app, have bulkheads of their own
+		MongoDBAdmission.point(app + "other").close();
+		MongoDBAdmission.bulk(app).close();
+
+		release.countDown();
+		awaitStat("point " + app, "active", 0);
+		MongoDBAdmission.point(app).close();
+		assertEquals(3, stat("point " + app, "admitted"));
+
+		// no limit, no bulkhead
+		System.setProperty("para.mongodb.tenant_max_point_ops", "0");
+		System.setProperty("para.mongodb.tenant_max_bulk_ops", "0");
+		assertFalse(MongoDBAdmission.isEnabled());
+		MongoDBAdmission.point(app + "unlimited").close();
+		assertNull(MongoDBAdmission.getStats().get("point " + app + "unlimited"));
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		System.setProperty("para.mongodb.tenant_queue_timeout_ms", "100");
+		System.setProperty("para.mongodb.tenant_max_queued", "1");
+		CountDownLatch release = new CountDownLatch(1);
+		hold(() -> MongoDBAdmission.bulk(app), release);
+
+		// waits for the timeout, then gives up
+		long start = System.nanoTime();
+		assertThrows(RejectedExecutionException.class, () -> MongoDBAdmission.bulk(app));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+
+		// a queued operation is admitted once a permit is released
+		System.setProperty("para.mongodb.tenant_queue_timeout_ms", "10000");
+		Future<?> queued = threads.submit(() -> MongoDBAdmission.bulk(app).close());
+		awaitStat("bulk " + app, "queued", 1);
+		// the queue is full, so the next one is rejected without waiting
+		start = System.nanoTime();
+		assertThrows(RejectedExecutionException.class, () -> MongoDBAdmission.bulk(app));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+		assertEquals(2, stat("bulk " + app, "rejected"));
+
+		release.countDown();
+		queued.get(5, TimeUnit.SECONDS);
+		assertEquals(2, stat("bulk " + app, "admitted"));
+		assertEquals(0, stat("bulk " + app, "queued"));
+		assertTrue(stat("bulk " + app, "wait_ms") > 0);
+	}
+
+	@Test
+	public void testReentrancy() throws Exception {
+		System.setProperty("para.mongodb.tenant_max_point_ops", "1");
+		try (Permit outer = MongoDBAdmission.point(app)) {
+			// a nested operation for the same app is already admitted, even at the limit
+			try (Permit inner = MongoDBAdmission.point(app)) {
+				assertEquals(1, stat("point " + app, "active"));
+			}
+			// closing the nested permit doesn't release the outer one
+			assertEquals(1, stat("point " + app, "active"));
+			assertThrows(RejectedExecutionException.class, () -> {
+				try {
+					threads.submit(() -> MongoDBAdmission.point(app).close()).get(5, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+			});
+		}
+		assertEquals(0, stat("point " + app, "active"));
+		threads.submit(() -> MongoDBAdmission.point(app).close()).get(5, TimeUnit.SECONDS);
+		assertEquals(2, stat("point " + app, "admitted"));
+	}
+
+	@Test
+	public void testBulkManyApps() throws Exception {
+		String a = app + "a";
+		String b = app + "b";
+		String c = app + "c";
+		try (Permit all = MongoDBAdmission.bulk(List.of(c, a, b, a))) {
+			assertEquals(1, stat("bulk " + a, "active"));
+			assertEquals(1, stat("bulk " + b, "active"));
+			assertEquals(1, stat("bulk " + c, "active"));
+		}
+		assertEquals(0, stat("bulk " + a, "active"));
+		assertEquals(0, stat("bulk " + b, "active"));
+		assertEquals(0, stat("bulk " + c, "active"));
+
+		// permits are taken in order, and given back if one of the apps is full
+		CountDownLatch release = new CountDownLatch(1);
+		hold(() -> MongoDBAdmission.bulk(b), release);
+		assertThrows(RejectedExecutionException.class, () -> MongoDBAdmission.bulk(List.of(c, b, a)));
+		assertEquals(2, stat("bulk " + a, "admitted"));
+		assertEquals(0, stat("bulk " + a, "active"));
+		assertEquals(1, stat("bulk " + c, "admitted"));
+		release.countDown();
+		awaitStat("bulk " + b, "active", 0);
+		MongoDBAdmission.bulk(List.of(c, b, a)).close();
+		assertEquals(2, stat("bulk " + c, "admitted"));
+	}
+
+	@Test
+	public void testExclusive() throws Exception {
+		// works without limits too
+		System.setProperty("para.mongodb.tenant_max_point_ops", "0");
+		System.setProperty("para.mongodb.tenant_max_bulk_ops", "0");
+		CountDownLatch release = new CountDownLatch(1);
+		hold(() -> MongoDBAdmission.point(app), release);
+		// waits for the running operations
+		CountDownLatch paused = new CountDownLatch(1);
+		CountDownLatch resume = new CountDownLatch(1);
+		Future<?> exclusive = threads.submit(() -> {
+			try (Permit permit = MongoDBAdmission.exclusive(app)) {
+				paused.countDown();
+				resume.await(10, TimeUnit.SECONDS);
+			}
+			return null;
+		});
+		assertFalse(paused.await(100, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(paused.await(5, TimeUnit.SECONDS));
+
+		// new operations wait until it's closed, other apps don't
+		Future<?> blocked = threads.submit(() -> MongoDBAdmission.bulk(List.of(app, app + "other")).close());
+		MongoDBAdmission.point(app + "other").close();
+		Thread.sleep(100);
+		assertFalse(blocked.isDone());
+		resume.countDown();
+		exclusive.get(5, TimeUnit.SECONDS);
+		blocked.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes a permit on another thread and keeps it until released.
+	 */
+	private void hold(Supplier<Permit> acquire, CountDownLatch release) throws InterruptedException {
+		CountDownLatch acquired = new CountDownLatch(1);
+		threads.submit(() -> {
+			try (Permit permit = acquire.get()) {
+				acquired.countDown();
+				release.await(10, TimeUnit.SECONDS);
+			}
+			return null;
+		});
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+	}
+
+	private static long stat(String bulkhead, String counter) {
+		return MongoDBAdmission.getStats().get(bulkhead).get(counter);
+	}
+
+	private static void awaitStat(String bulkhead, String counter, long value) throws InterruptedException {
+		for (int i = 0; i < 500 && stat(bulkhead, counter) != value; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(value, stat(bulkhead, counter));
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.bson.BsonBinarySubType;
+import org.bson.Document;
+import org.bson.types.Binary;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class MongoDBCompressionTest {
+
+	@Test
+	public void testRoundTrip() {
+		Map<String, Object> map = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			map.put("key" + i, "value " + i);
+		}
+		map.put("nested", new Document("a", 1));
+		Object compressed = MongoDBCompression.compress("properties", map, 100);
+		assertTrue(MongoDBCompression.isCompressed(compressed));
+		Document inflated = MongoDBCompression.decompress(compressed);
+		assertEquals(map.size(), inflated.size());
+		assertEquals("value 99", inflated.get("key99"));
+		assertEquals(1, ((Document) inflated.get("nested")).get("a"));
+
+		// below the threshold, or disabled
+		assertSame(map, MongoDBCompression.compress("properties", map, 100_000));
+		assertSame(map, MongoDBCompression.compress("properties", map, -1));
+	}
+
+	@Test
+	public void testOtherBinaryData() {
+		// user-defined binary data which wasn't written by the plugin, even if it starts with the format byte
+		Binary other = new Binary(BsonBinarySubType.USER_DEFINED, new byte[] {1, 120, 1, 2, 3});
+		assertFalse(MongoDBCompression.isCompressed(other));
+		assertThrows(IllegalArgumentException.class, () -> MongoDBCompression.decompress(other));
+		assertFalse(MongoDBCompression.isCompressed(new Binary(BsonBinarySubType.USER_DEFINED, new byte[] {(byte) 0xFF, 'P', 'Z'})));
+		assertFalse(MongoDBCompression.isCompressed(new Binary(BsonBinarySubType.BINARY, new byte[] {(byte) 0xFF, 'P', 'Z', 1, 0})));
+		assertFalse(MongoDBCompression.isCompressed("text"));
+	}
+}
@@ -18,21 +18,31 @@
 package com.erudika.para.server.persistence;
 
 import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.Tag;
+import com.erudika.para.core.utils.Pager;
 import com.erudika.para.core.utils.Utils;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.Filters;
 import de.flapdoodle.embed.mongo.commands.ServerAddress;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.mongo.transitions.Mongod;
 import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
 import de.flapdoodle.reverse.TransitionWalker;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -61,6 +71,9 @@ public class MongoDBDAOIT extends DAOTest {
 		System.setProperty("para.mongodb.port", "" + serverAddress.getPort());
 		System.setProperty("para.app_name", ROOT_APP_NAME);
 		System.setProperty("para.cluster_name", ROOT_APP_NAME);
+		System.setProperty("para.mongodb.ttl", "ttltype:3600, " + appid1 + "/ttltype:60");
+		System.setProperty("para.mongodb.compression", "compressed:100, " + appid1 + "/appcompressed:100");
+		System.setProperty("para.mongodb.max_keys_per_query", "5");
 
 		MongoDBUtils.createTable(ROOT_APP_NAME);
 		MongoDBUtils.createTable(appid1);
@@ -75,6 +88,12 @@ public class MongoDBDAOIT extends DAOTest {
 		MongoDBUtils.deleteTable(appid2);
 		MongoDBUtils.deleteTable(appid3);
 		MongoDBUtils.shutdownClient();
+		System.clearProperty("para.mongodb.port");
+		System.clearProperty("para.app_name");
+		System.clearProperty("para.cluster_name");
+		System.clearProperty("para.mongodb.ttl");
+		System.clearProperty("para.mongodb.compression");
+		System.clearProperty("para.mongodb.max_keys_per_query");
 
 		mongo.close();
 		running.current().stop();
@@ -202,4 +221,581 @@ public class MongoDBDAOIT extends DAOTest {
 		d.deleteAll(List.of(s1, s2, s3, s4, s5, s6));
 	}
 
+	@Test
+	public void testReadAllInKeyOrder() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		List<Sysprop> objects = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 23; i++) {
+			objects.add(new Sysprop("order_" + i));
+			keys.add(0, "order_" + i);
+		}
+		d.createAll(appid1, objects);
+		keys.add(3, "order_missing");
+		keys.add("order_5");
+
+		Map<String, Sysprop> read = d.readAll(appid1, keys, true);
+		assertEquals(23, read.size());
+		assertEquals(new ArrayList<>(read.keySet()), keys.stream().filter(k -> !k.equals("order_missing")).distinct().toList());
+
+		d.deleteAll(appid1, objects);
+		assertTrue(d.readAll(appid1, keys, true).isEmpty());
+	}
+
+	@Test
+	public void testCounts() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		Tag t1 = new Tag("count1");
+		Tag t2 = new Tag("count2");
+		d.createAll(appid2, List.of(t1, t2, new Sysprop("count3")));
+
+		assertEquals(2, MongoDBCounters.countByType(appid2, t1.getType()));
+		assertEquals(2, MongoDBCounters.countAllTypes(appid2).get(t1.getType()));
+		assertTrue(MongoDBUtils.getTableCount(appid2) >= 3);
+		assertEquals(MongoDBUtils.getTableCount(appid2, true), MongoDBUtils.getTableCount(appid2));
+
+		d.delete(appid2, t1);
+		assertEquals(1, MongoDBCounters.countByType(appid2, t1.getType()));
+		assertEquals(-1, MongoDBCounters.countByType(appid2, null));
+		d.deleteAll(appid2, List.of(t2));
+		assertEquals(0, MongoDBCounters.countByType(appid2, t2.getType()));
+	}
+
+	@Test
+	public void testMaterializedCounts() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "materialized";
+		MongoDBUtils.createTable(app);
+		Tag t1 = new Tag("mcount1");
+		Tag t2 = new Tag("mcount2");
+		d.createAll(app, List.of(t1, t2, new Sysprop("mcount3")));
+		System.setProperty("para.mongodb.materialized_counts_enabled", "true");
+		System.setProperty("para.mongodb.archive_after_days", "sysprop:1");
+		System.setProperty("para.mongodb.archive_interval_min", "0");
+		try {
+			// counters start empty, objects created before enabling them are counted by a rebuild
+			assertEquals(0, MongoDBCounters.countByType(app, t1.getType()));
+			assertTrue(MongoDBCounters.rebuildCounters(app));
+			assertEquals(2, MongoDBCounters.countByType(app, t1.getType()));
+			assertEquals(1, MongoDBCounters.countAllTypes(app).get("sysprop"));
+
+			Tag t3 = new Tag("mcount4");
+			d.create(app, t3);
+			d.create(app, t3);
+			assertEquals(3, MongoDBCounters.countByType(app, t1.getType()));
+			d.delete(app, t1);
+			d.delete(app, t1);
+			d.deleteAll(app, List.of(t2));
+			assertEquals(1, MongoDBCounters.countByType(app, t1.getType()));
+			d.create(app, new Tag(t1.getTag()));
+			assertEquals(2, MongoDBCounters.countByType(app, t1.getType()));
+
+			// archived objects are still counted, by the DAO and by a rebuild
+			Sysprop old = new Sysprop("mcountold");
+			old.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3));
+			d.create(app, old);
+			assertEquals(2, MongoDBCounters.countByType(app, "sysprop"));
+			assertEquals(1, MongoDBArchive.archive(app));
+			assertEquals(2, MongoDBCounters.countByType(app, "sysprop"));
+			assertTrue(MongoDBCounters.rebuildCounters(app));
+			assertEquals(2, MongoDBCounters.countByType(app, "sysprop"));
+			assertEquals(2, MongoDBCounters.countAllTypes(app).get(t1.getType()));
+			d.delete(app, old);
+			assertEquals(1, MongoDBCounters.countByType(app, "sysprop"));
+
+			// types with a TTL have no counter, expired objects are deleted by the server
+			Sysprop expiring = new Sysprop("mcountttl");
+			expiring.setType("ttltype");
+			d.create(app, expiring);
+			assertEquals(1, MongoDBCounters.countByType(app, "ttltype"));
+			assertEquals(1, MongoDBCounters.countAllTypes(app).get("ttltype"));
+			assertTrue(MongoDBCounters.rebuildCounters(app));
+			assertNull(MongoDBUtils.getClient(app).getCollection(MongoDBUtils.getTableNameForAppid(app) + ".counters")
+					.find(new Document("_id", "ttltype")).first());
+			MongoDBUtils.getTable(app).deleteOne(new Document("_id", expiring.getId()));
+			assertEquals(0, MongoDBCounters.countByType(app, "ttltype"));
+			assertNull(MongoDBCounters.countAllTypes(app).get("ttltype"));
+		} finally {
+			System.clearProperty("para.mongodb.materialized_counts_enabled");
+			System.clearProperty("para.mongodb.archive_after_days");
+			System.clearProperty("para.mongodb.archive_interval_min");
+			MongoDBArchive.dropTable(app);
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testTTL() {
+		assertEquals(3600, MongoDBUtils.getTTL(appid2, "ttltype"));
+		assertEquals(60, MongoDBUtils.getTTL(appid1, "ttltype"));
+		assertEquals(0, MongoDBUtils.getTTL(appid1, "sysprop"));
+
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		Sysprop s = new Sysprop("ttl1");
+		s.setType("ttltype");
+		d.create(appid1, s);
+		Document row = MongoDBUtils.getTable(appid1).find(new Document("_id", s.getId())).first();
+		assertNotNull(row);
+		assertTrue(row.getDate(MongoDBUtils.EXPIRES_AT).getTime() > System.currentTimeMillis());
+		Sysprop s1 = d.read(appid1, s.getId());
+		assertNotNull(s1);
+		assertNull(s1.getProperty(MongoDBUtils.EXPIRES_AT));
+		d.delete(appid1, s);
+	}
+
+	@Test
+	public void testCompression() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		Sysprop s = new Sysprop("compressed1");
+		s.setType("compressed");
+		for (int i = 0; i < 100; i++) {
+			s.addProperty("$key." + i, "value " + i);
+		}
+		s.addProperty("nested", Collections.singletonMap("a.b", 1));
+		d.create(s);
+		Document row = MongoDBUtils.getTable(ROOT_APP_NAME).find(new Document("_id", s.getId())).first();
+		assertNotNull(row);
+		assertTrue(MongoDBCompression.isCompressed(row.get("properties")));
+
+		Sysprop s1 = d.read(s.getId());
+		assertEquals(s.getProperties().size(), s1.getProperties().size());
+		assertEquals("value 99", s1.getProperty("$key.99"));
+		assertEquals(1, ((Map<?, ?>) s1.getProperty("nested")).get("a.b"));
+
+		s1.addProperty("small", true);
+		d.update(s1);
+		assertEquals(true, ((Sysprop) d.read(s.getId())).getProperty("small"));
+		d.delete(s);
+
+		// per-app policies apply to updated objects which don't have their appid set
+		Sysprop s2 = new Sysprop("compressed2");
+		s2.setType("appcompressed");
+		d.create(appid1, s2);
+		Sysprop s3 = new Sysprop(s2.getId());
+		s3.setType(s2.getType());
+		for (int i = 0; i < 100; i++) {
+			s3.addProperty("key" + i, "value " + i);
+		}
+		assertNull(s3.getAppid());
+		d.update(appid1, s3);
+		row = MongoDBUtils.getTable(appid1).find(new Document("_id", s2.getId())).first();
+		assertNotNull(row);
+		assertTrue(MongoDBCompression.isCompressed(row.get("properties")));
+		assertEquals("value 99", ((Sysprop) d.read(appid1, s2.getId())).getProperty("key99"));
+		d.delete(appid1, s2);
+	}
+
+	@Test
+	public void testMultiAppBatch() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		assertTrue(MongoDBUtils.isClientBulkWriteSupported());
+		Sysprop s1 = new Sysprop("multi1");
+		Sysprop s2 = new Sysprop("multi2");
+		Tag t3 = new Tag("multi3");
+		d.createAll(Map.of(appid1, List.of(s1, s2), appid2, List.of(t3)));
+		assertNotNull(d.read(appid1, s1.getId()));
+		assertNotNull(d.read(appid1, s2.getId()));
+		assertNotNull(d.read(appid2, t3.getId()));
+		assertNull(d.read(appid2, s1.getId()));
+
+		s1.setName("multi1 updated");
+		t3.setCount(5);
+		d.updateAll(Map.of(appid1, List.of(s1), appid2, List.of(t3)));
+		assertEquals("multi1 updated", d.read(appid1, s1.getId()).getName());
+		assertEquals(5, ((Tag) d.read(appid2, t3.getId())).getCount());
+
+		d.deleteAll(Map.of(appid1, List.of(s1, s2), appid2, List.of(t3)));
+		assertNull(d.read(appid1, s1.getId()));
+		assertNull(d.read(appid1, s2.getId()));
+		assertNull(d.read(appid2, t3.getId()));
+	}
+
+	@Test
+	public void testCompactIds() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		Sysprop legacy = new Sysprop();
+		Sysprop archived = new Sysprop();
+		d.createAll(appid3, List.of(legacy, archived));
+		MongoDBArchive.getTable(appid3).insertOne(MongoDBUtils.getTable(appid3).findOneAndDelete(new Document("_id", archived.getId())));
+		System.setProperty("para.mongodb.compact_ids_enabled", "true");
+		try {
+			Sysprop compact = new Sysprop();
+			d.create(appid3, compact);
+			assertTrue(MongoDBUtils.getTable(appid3).find(new Document("_id", new ObjectId(compact.getId()))).first() != null);
+			assertTrue(MongoDBUtils.getTable(appid3).find(new Document("_id", legacy.getId())).first() != null);
+			assertEquals(compact.getId(), d.read(appid3, compact.getId()).getId());
+			assertEquals(legacy.getId(), d.read(appid3, legacy.getId()).getId());
+			assertEquals(2, d.readAll(appid3, List.of(legacy.getId(), compact.getId()), true).size());
+
+			// replacing an object stored with a string id keeps that id, until the table is migrated
+			legacy.setName("legacy replaced");
+			d.createAll(appid3, List.of(legacy, compact));
+			assertEquals("legacy replaced", d.read(appid3, legacy.getId()).getName());
+			assertEquals(1, MongoDBUtils.getTable(appid3).countDocuments(new Document("_id", legacy.getId())));
+
+			assertTrue(MongoDBMigrations.migrateIds(appid3, true) >= 1);
+			assertTrue(MongoDBUtils.getTable(appid3).find(new Document("_id", new ObjectId(legacy.getId()))).first() != null);
+			assertEquals("legacy replaced", d.read(appid3, legacy.getId()).getName());
+			assertEquals(1, MongoDBUtils.getTable(appid3).countDocuments(Filters.in("_id", legacy.getId(), new ObjectId(legacy.getId()))));
+			assertTrue(MongoDBArchive.getTable(appid3).find(new Document("_id", new ObjectId(archived.getId()))).first() != null);
+			assertEquals(0, MongoDBMigrations.migrateIds(appid3, true));
+
+			d.deleteAll(appid3, List.of(legacy, compact));
+			assertNull(d.read(appid3, legacy.getId()));
+			assertNull(d.read(appid3, compact.getId()));
+		} finally {
+			System.clearProperty("para.mongodb.compact_ids_enabled");
+			MongoDBArchive.dropTable(appid3);
+		}
+	}
+
+	@Test
+	public void testSchemaV2() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "schema-v2";
+		MongoDBUtils.createTable(app);
+		List<Sysprop> objects = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			objects.add(new Sysprop());
+		}
+		d.createAll(app, objects.subList(0, 4));
+		System.setProperty("para.mongodb.schema_version", "2");
+		try {
+			d.createAll(app, objects.subList(4, 7));
+			assertEquals(3, MongoDBUtils.getTable(app).countDocuments(new Document("_ObjectId", new Document("$exists", false))));
+
+			List<String> ids = new ArrayList<>();
+			Pager pager = new Pager(3);
+			List<Sysprop> page;
+			while (!(page = d.readPage(app, pager)).isEmpty()) {
+				page.forEach(s -> ids.add(s.getId()));
+			}
+			assertEquals(objects.stream().map(Sysprop::getId).sorted().toList(), ids);
+			assertNull(((Sysprop) d.read(app, objects.get(0).getId())).getProperty("_ObjectId"));
+
+			assertEquals(4, MongoDBMigrations.migrateToSchemaV2(app));
+			assertEquals(0, MongoDBUtils.getTable(app).countDocuments(new Document("_ObjectId", new Document("$exists", true))));
+		} finally {
+			System.clearProperty("para.mongodb.schema_version");
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testFilteredUpdateAndDelete() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		List<Sysprop> children = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Sysprop s = new Sysprop("child" + i);
+			s.setType("child");
+			s.setParentid("parent1");
+			s.setTimestamp(1000L + i);
+			children.add(s);
+		}
+		Sysprop other = new Sysprop("child_other");
+		other.setType("child");
+		other.setParentid("parent2");
+		d.createAll(appid2, children);
+		d.create(appid2, other);
+
+		assertThrows(IllegalArgumentException.class, () -> d.deleteByFilter(appid2, MongoDBFilter.create()));
+		assertEquals(2, d.updateByFilter(appid2, MongoDBFilter.create().parentid("parent1").timestampFrom(1003L),
+				Map.of("name", "renamed")));
+		assertEquals("renamed", d.read(appid2, "child4").getName());
+		assertEquals("child", d.read(appid2, "child2").getType());
+
+		assertEquals(5, d.deleteByFilter(appid2, MongoDBFilter.create().type("child").parentid("parent1")));
+		assertNull(d.read(appid2, "child0"));
+		assertNotNull(d.read(appid2, other.getId()));
+		d.delete(appid2, other);
+	}
+
+	@Test
+	public void testUpdateFields() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		Sysprop s = new Sysprop("counter1");
+		s.addProperty("views", 1);
+		s.addProperty("a.b", "dotted");
+		d.create(appid1, s);
+		// without a compression policy, keys inside maps can be changed on the server
+		System.clearProperty("para.mongodb.compression");
+
+		assertTrue(d.updateFields(appid1, s.getId(), MongoDBFieldUpdate.create().inc("properties.views", 2).
+				set("name", "counted").push("tags", "hot")));
+		Sysprop updated = d.read(appid1, s.getId());
+		assertEquals(3, ((Number) updated.getProperty("views")).intValue());
+		assertEquals("dotted", updated.getProperty("a.b"));
+		assertEquals("counted", updated.getName());
+		assertTrue(updated.getTags().contains("hot"));
+		assertNotNull(updated.getUpdated());
+
+		assertFalse(d.updateFields(appid1, "missing_counter", MongoDBFieldUpdate.create().inc("votes", 1)));
+		assertThrows(IllegalArgumentException.class, () -> d.updateFields(appid1, s.getId(),
+				MongoDBFieldUpdate.create().set("type", "other")));
+		assertThrows(IllegalArgumentException.class, () -> MongoDBFieldUpdate.create().set("name", "a").unset("name"));
+
+		assertEquals(1, d.updateFields(appid1, Map.of(s.getId(), MongoDBFieldUpdate.create().unset("properties.views"),
+				"missing_counter", MongoDBFieldUpdate.create().inc("votes", 1))));
+		assertNull(((Sysprop) d.read(appid1, s.getId())).getProperty("views"));
+
+		// keys inside a map which may be stored compressed can't be changed on the server
+		System.setProperty("para.mongodb.compression", "sysprop:100");
+		try {
+			assertThrows(IllegalArgumentException.class, () -> d.updateFields(appid1, s.getId(),
+					MongoDBFieldUpdate.create().inc("properties.views", 1)));
+			assertTrue(d.updateFields(appid1, s.getId(), MongoDBFieldUpdate.create().inc("votes", 1)));
+			System.setProperty("para.mongodb.compression_excluded_fields", "properties");
+			assertTrue(d.updateFields(appid1, s.getId(), MongoDBFieldUpdate.create().inc("properties.views", 1)));
+			assertEquals(1, ((Number) ((Sysprop) d.read(appid1, s.getId())).getProperty("views")).intValue());
+		} finally {
+			System.setProperty("para.mongodb.compression", "compressed:100, " + appid1 + "/appcompressed:100");
+			System.clearProperty("para.mongodb.compression_excluded_fields");
+		}
+		d.delete(appid1, s);
+	}
+
+	@Test
+	public void testClusteredTable() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "clustered";
+		MongoDBUtils.createTable(app);
+		Sysprop s = new Sysprop("clustered1");
+		d.create(app, s);
+		assertFalse(MongoDBUtils.isClusteredTable(app));
+		try {
+			assertEquals(1, MongoDBMigrations.migrateToClusteredTable(app));
+			assertTrue(MongoDBUtils.isClusteredTable(app));
+			assertNotNull(d.read(app, s.getId()));
+			assertEquals(0, MongoDBMigrations.migrateToClusteredTable(app));
+		} finally {
+			MongoDBUtils.deleteTable(app);
+		}
+		System.setProperty("para.mongodb.clustered_collections_enabled", "true");
+		try {
+			MongoDBUtils.createTable(app);
+			assertTrue(MongoDBUtils.isClusteredTable(app));
+		} finally {
+			System.clearProperty("para.mongodb.clustered_collections_enabled");
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testArchive() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "archived";
+		MongoDBUtils.createTable(app);
+		System.setProperty("para.mongodb.archive_after_days", "sysprop:1");
+		System.setProperty("para.mongodb.archive_interval_min", "0");
+		try {
+			Sysprop old1 = new Sysprop("old1");
+			Sysprop old2 = new Sysprop("old2");
+			Sysprop recent = new Sysprop("recent");
+			old1.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3));
+			old2.setTimestamp(old1.getTimestamp());
+			d.createAll(app, List.of(old1, old2, recent));
+			assertEquals(2, MongoDBArchive.archive(app));
+			assertEquals(0, MongoDBArchive.archive(app));
+			assertNotNull(d.read(app, old1.getId()));
+			assertEquals(3, d.readAll(app, List.of(old1.getId(), old2.getId(), recent.getId()), true).size());
+
+			// an update moves the object back, so it isn't archived again right away
+			old1.setName("updated");
+			d.update(app, old1);
+			assertEquals("updated", d.read(app, old1.getId()).getName());
+			assertEquals(0, MongoDBArchive.archive(app));
+
+			d.delete(app, old2);
+			assertNull(d.read(app, old2.getId()));
+		} finally {
+			System.clearProperty("para.mongodb.archive_after_days");
+			System.clearProperty("para.mongodb.archive_interval_min");
+			MongoDBArchive.dropTable(app);
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testArchiveConsistency() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "archivedsync";
+		MongoDBUtils.createTable(app);
+		System.setProperty("para.mongodb.archive_after_days", "sysprop:1");
+		System.setProperty("para.mongodb.archive_interval_min", "0");
+		try {
+			// an update between the archiver's copy and its delete leaves the object in both tables
+			Sysprop updated = new Sysprop("updatedwhilearchived");
+			updated.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3));
+			d.create(app, updated);
+			MongoDBArchive.getTable(app).insertOne(MongoDBUtils.getTable(app).find(Filters.eq("_id", updated.getId())).first());
+			updated.setName("updated");
+			d.update(app, updated);
+			assertEquals("updated", d.read(app, updated.getId()).getName());
+			d.delete(app, updated);
+			assertNull(d.read(app, updated.getId()));
+			assertEquals(0, MongoDBArchive.getTable(app).countDocuments());
+
+			// an archived copy never replaces a newer object
+			Sysprop newer = new Sysprop("newerthanarchived");
+			newer.setName("old");
+			d.create(app, newer);
+			MongoDBArchive.getTable(app).insertOne(MongoDBUtils.getTable(app).find(Filters.eq("_id", newer.getId())).first());
+			newer.setName("new");
+			d.update(app, newer);
+			assertTrue(MongoDBArchive.promote(app, Filters.eq("_id", newer.getId())).isEmpty());
+			assertEquals("new", d.read(app, newer.getId()).getName());
+			assertEquals(0, MongoDBArchive.getTable(app).countDocuments());
+
+			// creating an archived object again deletes its archived copy
+			Sysprop recreated = new Sysprop("recreated");
+			recreated.setTimestamp(updated.getTimestamp());
+			d.create(app, recreated);
+			assertEquals(1, MongoDBArchive.archive(app));
+			d.create(app, new Sysprop(recreated.getId()));
+			assertEquals(0, MongoDBArchive.getTable(app).countDocuments());
+			d.delete(app, recreated);
+			assertNull(d.read(app, recreated.getId()));
+
+			// filtered updates and deletes reach archived objects, which are only counted once if they are in both tables
+			System.setProperty("para.mongodb.materialized_counts_enabled", "true");
+			Sysprop archived = new Sysprop("filteredarchived");
+			Sysprop both = new Sysprop("filteredinboth");
+			archived.setCreatorid("filtered");
+			archived.setTimestamp(updated.getTimestamp());
+			both.setCreatorid("filtered");
+			d.createAll(app, List.of(archived, both));
+			assertEquals(1, MongoDBArchive.archive(app));
+			MongoDBArchive.getTable(app).insertOne(MongoDBUtils.getTable(app).find(Filters.eq("_id", both.getId())).first());
+			assertTrue(MongoDBCounters.rebuildCounters(app));
+			assertEquals(2, MongoDBCounters.countByType(app, "sysprop"));
+			MongoDBFilter filter = MongoDBFilter.create().creatorid("filtered");
+			assertEquals(2, d.updateByFilter(app, filter, Map.of("name", "changed")));
+			assertEquals("changed", d.read(app, archived.getId()).getName());
+			assertEquals(2, d.deleteByFilter(app, filter));
+			assertNull(d.read(app, archived.getId()));
+			assertNull(d.read(app, both.getId()));
+			assertEquals(0, MongoDBCounters.countByType(app, "sysprop"));
+		} finally {
+			System.clearProperty("para.mongodb.materialized_counts_enabled");
+			System.clearProperty("para.mongodb.archive_after_days");
+			System.clearProperty("para.mongodb.archive_interval_min");
+			MongoDBArchive.dropTable(app);
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testBulkWriteResult() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String app = "bulkresult";
+		MongoDBUtils.createTable(app);
+		try {
+			MongoDBUtils.getClient().runCommand(new Document("collMod", MongoDBUtils.getTableNameForAppid(app)).
+					append("validator", new Document("name", new Document("$type", "string")).
+							append("$expr", new Document("$lte", List.of(new Document("$strLenCP", "$name"), 5)))));
+			Sysprop ok1 = new Sysprop("ok1");
+			Sysprop ok2 = new Sysprop("ok2");
+			Sysprop invalid = new Sysprop("invalid");
+			ok1.setName("short");
+			ok2.setName("short");
+			invalid.setName("too long");
+			MongoDBBulkResult result = d.tryCreateAll(app, List.of(ok1, invalid, ok2));
+			assertFalse(result.isSuccess());
+			assertEquals(List.of(invalid.getId()), result.getFailed(MongoDBBulkResult.Failure.VALIDATION));
+			assertTrue(result.getSucceeded().containsAll(List.of(ok1.getId(), ok2.getId())));
+			assertNotNull(result.getMessage(invalid.getId()));
+			assertNotNull(d.read(app, ok2.getId()));
+			assertNull(d.read(app, invalid.getId()));
+
+			ok1.setName("long name");
+			result = d.tryUpdateAll(app, List.of(ok1, ok2));
+			assertEquals(List.of(ok1.getId()), result.getFailed(MongoDBBulkResult.Failure.VALIDATION));
+			assertEquals(List.of(ok2.getId()), result.getSucceeded());
+		} finally {
+			MongoDBUtils.deleteTable(app);
+		}
+	}
+
+	@Test
+	public void testCopyApp() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		String source = "copysource";
+		String target = "copytarget";
+		MongoDBUtils.createTable(source);
+		System.setProperty("para.mongodb.copy_batch_size", "2");
+		try {
+			List<Sysprop> objects = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				Sysprop s = new Sysprop("copy" + i);
+				s.setType(i < 3 ? "cat" : "dog");
+				objects.add(s);
+			}
+			d.createAll(source, objects);
+			List<Long> progress = new ArrayList<>();
+			assertEquals(5, MongoDBUtils.copyApp(source, target, false, progress::add));
+			assertEquals(List.of(2L, 4L, 5L), progress);
+			Sysprop copy = d.read(target, "copy0");
+			assertNotNull(copy);
+			assertEquals(target, copy.getAppid());
+			assertNotNull(d.read(source, "copy0"));
+
+			d.create(target, new Sysprop("extra"));
+			assertEquals(2, MongoDBUtils.cloneApp(source, target, "dog"));
+			assertNull(d.read(target, "extra"));
+			assertNull(d.read(target, "copy0"));
+			assertNotNull(d.read(target, "copy4"));
+			assertThrows(IllegalArgumentException.class, () -> MongoDBUtils.copyApp(source, source));
+		} finally {
+			System.clearProperty("para.mongodb.copy_batch_size");
+			MongoDBUtils.deleteTable(source);
+			MongoDBUtils.deleteTable(target);
+		}
+	}
+
+	@Test
+	public void testKeyFilter() {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		System.setProperty("para.mongodb.key_filter_enabled", "true");
+		try {
+			d.create(appid1, new Sysprop("keyfilter1"));
+			// the test server is standalone, without change streams, so probe reads must still go to the database
+			MongoDBKeyFilter.build(appid1);
+			assertTrue(MongoDBKeyFilter.mightContain(appid1, "missing"));
+			d.create(appid1, new Sysprop("keyfilter2"));
+			assertNotNull(d.probe(appid1, "keyfilter1"));
+			assertNotNull(d.probe(appid1, "keyfilter2"));
+			assertNull(d.probe(appid1, "missing"));
+			assertEquals(2, d.probeAll(appid1, List.of("keyfilter1", "keyfilter2", "missing")).size());
+		} finally {
+			System.clearProperty("para.mongodb.key_filter_enabled");
+			d.deleteAll(appid1, List.of(new Sysprop("keyfilter1"), new Sysprop("keyfilter2")));
+		}
+	}
+
+	@Test
+	public void testReadCoalescing() throws Exception {
+		MongoDBDAO d = ((MongoDBDAO) dao());
+		System.setProperty("para.mongodb.read_coalescing_enabled", "true");
+		try {
+			Sysprop s = new Sysprop("coalesced1");
+			s.setName("before");
+			d.create(appid1, s);
+			List<CompletableFuture<Sysprop>> reads = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				reads.add(CompletableFuture.supplyAsync(() -> d.read(appid1, s.getId())));
+			}
+			for (CompletableFuture<Sysprop> read : reads) {
+				assertEquals("before", read.get(10, TimeUnit.SECONDS).getName());
+			}
+			// a read after a write never gets a result loaded before it
+			s.setName("after");
+			d.update(appid1, s);
+			assertEquals("after", d.read(appid1, s.getId()).getName());
+			d.delete(appid1, s);
+			assertNull(d.read(appid1, s.getId()));
+		} finally {
+			System.clearProperty("para.mongodb.read_coalescing_enabled");
+		}
+	}
+
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MongoDBResilienceTest {
+
+	private static final AtomicInteger CLUSTERS = new AtomicInteger();
+	private String cluster;
+
+	@BeforeEach
+	public void setUp() {
+		// each test gets a circuit breaker of its own
+		cluster = "resilience" + CLUSTERS.incrementAndGet();
+		System.setProperty("para.mongodb.retry_max_attempts", "3");
+		System.setProperty("para.mongodb.retry_base_delay_ms", "1");
+		System.setProperty("para.mongodb.retry_max_delay_ms", "5");
+		System.setProperty("para.mongodb.circuit_breaker_threshold", "2");
+		System.setProperty("para.mongodb.circuit_breaker_open_ms", "60000");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty("para.mongodb.retry_max_attempts");
+		System.clearProperty("para.mongodb.retry_base_delay_ms");
+		System.clearProperty("para.mongodb.retry_max_delay_ms");
+		System.clearProperty("para.mongodb.circuit_breaker_threshold");
+		System.clearProperty("para.mongodb.circuit_breaker_open_ms");
+		System.clearProperty("para.mongodb.hedged_reads_after_ms");
+	}
+
+	@Test
+	public void testRetries() {
+		System.setProperty("para.mongodb.circuit_breaker_threshold", "0");
+		AtomicInteger calls = new AtomicInteger();
+		assertEquals("ok", MongoDBResilience.execute(cluster, () -> {
+			if (calls.incrementAndGet() < 3) {
+				throw socketError();
+			}
+			return "ok";
+		}));
+		assertEquals(3, calls.get());
+
+		// transient errors are retried until the attempts run out
+		calls.set(0);
+		assertThrows(MongoSocketException.class, () -> MongoDBResilience.execute(cluster, failing(calls, socketError())));
+		assertEquals(3, calls.get());
+
+		// other errors aren't retried
+		calls.set(0);
+		assertThrows(IllegalArgumentException.class, () ->
+				MongoDBResilience.execute(cluster, failing(calls, new IllegalArgumentException())));
+		assertEquals(1, calls.get());
+
+		// writes which aren't idempotent are never retried
+		calls.set(0);
+		assertThrows(MongoSocketException.class, () -> MongoDBResilience.executeOnce(cluster, failing(calls, socketError())));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testBackoff() {
+		System.setProperty("para.mongodb.retry_base_delay_ms", "20");
+		System.setProperty("para.mongodb.retry_max_delay_ms", "40");
+		// the first call may have to load the config
+		MongoDBResilience.backoff(1);
+		for (int attempt = 1; attempt <= 10; attempt++) {
+			long start = System.nanoTime();
+			MongoDBResilience.backoff(attempt);
+			// the delay is random, but never longer than the ceiling for that attempt (plus scheduling noise)
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < Math.min(40, 20 << (attempt - 1)) + 30);
+		}
+	}
+
+	@Test
+	public void testCircuitBreaker() {
+		System.setProperty("para.mongodb.retry_max_attempts", "1");
+		AtomicInteger calls = new AtomicInteger();
+		// errors which don't mean the cluster is down never open the breaker
+		for (int i = 0; i < 5; i++) {
+			assertThrows(IllegalArgumentException.class, () ->
+					MongoDBResilience.execute(cluster, failing(calls, new IllegalArgumentException())));
+		}
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertEquals(7, calls.get());
+		// open - calls fail fast, without reaching the cluster
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.execute(cluster, () -> calls.incrementAndGet()));
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.executeOnce(cluster, () -> calls.incrementAndGet()));
+		assertEquals(7, calls.get());
+		// other clusters aren't affected
+		assertEquals(8, (int) MongoDBResilience.execute(cluster + "other", () -> calls.incrementAndGet()));
+	}
+
+	@Test
+	public void testCircuitBreakerHalfOpen() throws Exception {
+		System.setProperty("para.mongodb.retry_max_attempts", "1");
+		System.setProperty("para.mongodb.circuit_breaker_open_ms", "50");
+		AtomicInteger calls = new AtomicInteger();
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.execute(cluster, () -> calls.incrementAndGet()));
+		Thread.sleep(100);
+
+		// once the open period is over, a single probe is let through, everyone else still fails fast
+		CountDownLatch probing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<String> probe = CompletableFuture.supplyAsync(() -> MongoDBResilience.execute(cluster, () -> {
+			probing.countDown();
+			await(release);
+			return "probe";
+		}));
+		assertTrue(probing.await(5, TimeUnit.SECONDS));
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.execute(cluster, () -> calls.incrementAndGet()));
+		release.countDown();
+		assertEquals("probe", probe.get(5, TimeUnit.SECONDS));
+		// the probe succeeded, so the breaker is closed again
+		assertEquals(3, (int) MongoDBResilience.execute(cluster, () -> calls.incrementAndGet()));
+
+		// a failed probe opens it again right away
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		Thread.sleep(100);
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.execute(cluster, failing(calls, timeoutError())));
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.execute(cluster, () -> calls.incrementAndGet()));
+	}
+
+	@Test
+	public void testHedgedReads() {
+		System.setProperty("para.mongodb.hedged_reads_after_ms", "20");
+		// a fast primary is never hedged
+		AtomicInteger secondaryCalls = new AtomicInteger();
+		assertEquals("primary", MongoDBResilience.hedge(cluster, () -> "primary", () -> {
+			secondaryCalls.incrementAndGet();
+			return "secondary";
+		}));
+		assertEquals(0, secondaryCalls.get());
+
+		// a slow primary loses to a secondary which finds the object
+		assertEquals("secondary", MongoDBResilience.hedge(cluster, slow("primary"), () -> "secondary"));
+
+		// but a miss on a secondary may just be replication lag, the primary decides
+		assertEquals("primary", MongoDBResilience.hedge(cluster, slow("primary"), () -> null));
+		assertNull(MongoDBResilience.hedge(cluster, slow(null), () -> null));
+
+		// if the primary fails, the secondary's answer is used, even a miss
+		assertEquals("secondary", MongoDBResilience.hedge(cluster, slowFailing(), () -> "secondary"));
+		assertNull(MongoDBResilience.hedge(cluster, slowFailing(), () -> null));
+		assertThrows(IllegalArgumentException.class, () -> MongoDBResilience.hedge(cluster, slowFailing(), () -> {
+			throw new IllegalStateException();
+		}));
+	}
+
+	@Test
+	public void testHedgedReadsUseCircuitBreaker() {
+		System.setProperty("para.mongodb.retry_max_attempts", "1");
+		System.setProperty("para.mongodb.hedged_reads_after_ms", "20");
+		AtomicInteger calls = new AtomicInteger();
+		// the primary and the secondary each count as a failure
+		assertThrows(MongoTimeoutException.class, () -> MongoDBResilience.hedge(cluster, () -> {
+			sleep(100);
+			throw timeoutError();
+		}, failing(calls, socketError())));
+		assertEquals(1, calls.get());
+		assertThrows(IllegalStateException.class, () -> MongoDBResilience.hedge(cluster, () -> calls.incrementAndGet(),
+				() -> calls.incrementAndGet()));
+		assertEquals(1, calls.get());
+	}
+
+	private static <T> Supplier<T> failing(AtomicInteger calls, RuntimeException error) {
+		return () -> {
+			calls.incrementAndGet();
+			throw error;
+		};
+	}
+
+	private static <T> Supplier<T> slow(T value) {
+		return () -> {
+			sleep(200);
+			return value;
+		};
+	}
+
+	private static <T> Supplier<T> slowFailing() {
+		return () -> {
+			sleep(100);
+			throw new IllegalArgumentException();
+		};
+	}
+
+	private static MongoSocketException socketError() {
+		return new MongoSocketException("connection reset", new ServerAddress());
+	}
+
+	private static MongoTimeoutException timeoutError() {
+		return new MongoTimeoutException("no server available");
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
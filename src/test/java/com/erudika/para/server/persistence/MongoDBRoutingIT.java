@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the default profile on one server and two other profiles, in two databases, on a second server.
+ */
+public class MongoDBRoutingIT {
+
+	private static final String ROOT_APP_NAME = "para-test";
+	private static TransitionWalker.ReachedState<RunningMongodProcess> defaultServer;
+	private static TransitionWalker.ReachedState<RunningMongodProcess> otherServer;
+	private static MongoClient other;
+
+	@BeforeAll
+	public static void setUpClass() {
+		defaultServer = Mongod.instance().start(Version.Main.V8_0);
+		otherServer = Mongod.instance().start(Version.Main.V8_0);
+		ServerAddress otherAddress = otherServer.current().getServerAddress();
+		other = MongoClients.create("mongodb://" + otherAddress);
+
+		System.setProperty("para.mongodb.port", "" + defaultServer.current().getServerAddress().getPort());
+		System.setProperty("para.app_name", ROOT_APP_NAME);
+		System.setProperty("para.cluster_name", ROOT_APP_NAME);
+		System.setProperty("para.mongodb.connection_profiles", "one, two, three");
+		System.setProperty("para.mongodb.profile.one.uri", "mongodb://" + otherAddress);
+		System.setProperty("para.mongodb.profile.one.database", "routing-one");
+		System.setProperty("para.mongodb.profile.two.uri", "mongodb://" + otherAddress);
+		System.setProperty("para.mongodb.profile.two.database", "routing-two");
+		System.setProperty("para.mongodb.route_refresh_sec", "1");
+
+		MongoDBUtils.createTable(ROOT_APP_NAME);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		MongoDBUtils.getClient().drop();
+		other.getDatabase("routing-one").drop();
+		other.getDatabase("routing-two").drop();
+		MongoDBUtils.shutdownClient();
+		System.clearProperty("para.mongodb.port");
+		System.clearProperty("para.app_name");
+		System.clearProperty("para.cluster_name");
+		System.clearProperty("para.mongodb.connection_profiles");
+		System.clearProperty("para.mongodb.profile.one.uri");
+		System.clearProperty("para.mongodb.profile.one.database");
+		System.clearProperty("para.mongodb.profile.two.uri");
+		System.clearProperty("para.mongodb.profile.two.database");
+		System.clearProperty("para.mongodb.route_refresh_sec");
+
+		other.close();
+		otherServer.current().stop();
+		defaultServer.current().stop();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty("para.mongodb.routes");
+		System.clearProperty("para.mongodb.route_hash_profiles");
+		// forgets the cached routes
+		MongoDBRouting.shutdown();
+	}
+
+	@Test
+	public void testRouteResolution() {
+		// no route at all - the default profile, the root app always stays there
+		assertEquals(MongoDBRouting.DEFAULT_PROFILE, MongoDBRouting.getProfile("unrouted"));
+		System.setProperty("para.mongodb.routes", ROOT_APP_NAME + ":one, routed:one, unknown:nowhere");
+		System.setProperty("para.mongodb.route_hash_profiles", "two");
+		MongoDBRouting.shutdown();
+		assertEquals(MongoDBRouting.DEFAULT_PROFILE, MongoDBRouting.getProfile(ROOT_APP_NAME));
+
+		// a route in the config comes before the hash
+		assertEquals("one", MongoDBRouting.getProfile("routed"));
+		assertEquals("two", MongoDBRouting.getProfile("unrouted"));
+		assertThrows(IllegalStateException.class, () -> MongoDBRouting.getProfile("unknown"));
+
+		// a stored route comes before the config
+		MongoDBUtils.getClient().getCollection(MongoDBUtils.getTableNameForAppid(ROOT_APP_NAME) + ".routes").
+				insertOne(new Document("_id", "routed").append("profile", "two"));
+		try {
+			MongoDBRouting.shutdown();
+			assertEquals("two", MongoDBRouting.getProfile("routed"));
+		} finally {
+			MongoDBUtils.getClient().getCollection(MongoDBUtils.getTableNameForAppid(ROOT_APP_NAME) + ".routes").
+					deleteOne(new Document("_id", "routed"));
+		}
+	}
+
+	@Test
+	public void testRendezvousHashing() {
+		System.setProperty("para.mongodb.route_hash_profiles", "one, two");
+		Map<String, String> before = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			before.put("hashed" + i, MongoDBRouting.getProfile("hashed" + i));
+		}
+		// apps are spread over all profiles, and always hash to the same one
+		assertTrue(before.containsValue("one"));
+		assertTrue(before.containsValue("two"));
+		MongoDBRouting.shutdown();
+		before.forEach((app, profile) -> assertEquals(profile, MongoDBRouting.getProfile(app)));
+
+		// adding a profile only moves the apps which now hash to it
+		System.setProperty("para.mongodb.route_hash_profiles", "one, two, three");
+		MongoDBRouting.shutdown();
+		int moved = 0;
+		for (Map.Entry<String, String> app : before.entrySet()) {
+			String profile = MongoDBRouting.getProfile(app.getKey());
+			if (!profile.equals(app.getValue())) {
+				assertEquals("three", profile);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0 && moved < before.size());
+	}
+
+	@Test
+	public void testMoveApp() {
+		String app = "movedapp";
+		MongoDBDAO dao = new MongoDBDAO();
+		MongoDBUtils.createTable(app);
+		List<Sysprop> objects = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			objects.add(new Sysprop("moved" + i));
+		}
+		dao.createAll(app, objects);
+		assertEquals(MongoDBRouting.DEFAULT_PROFILE, MongoDBRouting.getProfile(app));
+		assertThrows(IllegalArgumentException.class, () -> MongoDBRouting.moveApp(app, "nowhere"));
+		assertThrows(IllegalArgumentException.class, () -> MongoDBRouting.moveApp(ROOT_APP_NAME, "one"));
+
+		// to another server
+		// objects written right before the move may be copied again by the catch-up
+		assertTrue(MongoDBRouting.moveApp(app, "one") >= objects.size());
+		assertEquals("one", MongoDBRouting.getProfile(app));
+		assertEquals(objects.size(), getTable("routing-one", app).countDocuments());
+		assertNotNull(dao.read(app, "moved0"));
+		dao.create(app, new Sysprop("moved20"));
+		assertEquals(objects.size() + 1, getTable("routing-one", app).countDocuments());
+		// the old table is kept, and no longer written to
+		assertEquals(objects.size(), MongoDBUtils.getClient().getCollection(MongoDBUtils.getTableNameForAppid(app)).
+				countDocuments());
+		assertEquals(0, MongoDBRouting.moveApp(app, "one"));
+
+		// between two profiles on the same server
+		assertTrue(MongoDBRouting.moveApp(app, "two") >= objects.size() + 1);
+		assertEquals("two", MongoDBRouting.getProfile(app));
+		assertEquals(objects.size() + 1, getTable("routing-two", app).countDocuments());
+		dao.delete(app, new Sysprop("moved20"));
+		assertNull(dao.read(app, "moved20"));
+		assertEquals(objects.size(), getTable("routing-two", app).countDocuments());
+		assertEquals(objects.size() + 1, getTable("routing-one", app).countDocuments());
+
+		// the stored route outlives the caches
+		MongoDBRouting.shutdown();
+		assertEquals("two", MongoDBRouting.getProfile(app));
+		assertEquals(objects.size(), dao.readAll(app, objects.stream().map(Sysprop::getId).toList(), true).size());
+	}
+
+	private static MongoCollection<Document> getTable(String database, String appid) {
+		return other.getDatabase(database).getCollection(MongoDBUtils.getTableNameForAppid(appid));
+	}
+}
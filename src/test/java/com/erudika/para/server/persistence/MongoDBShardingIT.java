@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.utils.Para;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import de.flapdoodle.embed.mongo.commands.MongodArguments;
+import de.flapdoodle.embed.mongo.commands.MongosArguments;
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.Mongos;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.embed.mongo.transitions.RunningMongosProcess;
+import de.flapdoodle.reverse.StateID;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.transitions.Start;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the DAO against a minimal sharded cluster - one config server, one shard and a mongos router.
+ */
+public class MongoDBShardingIT {
+
+	private static final String ROOT_APP_NAME = "para-test";
+	private static final String APPID = "shardedapp";
+	private static TransitionWalker.ReachedState<RunningMongodProcess> configServer;
+	private static TransitionWalker.ReachedState<RunningMongodProcess> shardServer;
+	private static TransitionWalker.ReachedState<RunningMongosProcess> router;
+	private static MongoClient mongo;
+
+	@BeforeAll
+	public static void setUpClass() throws InterruptedException {
+		configServer = startReplicaSetMember("cfg", true);
+		shardServer = startReplicaSetMember("shard", false);
+		String configDB = "cfg/" + configServer.current().getServerAddress();
+
+		router = Mongos.instance().transitions(Version.Main.V8_0)
+				.replace(Start.to(MongosArguments.class).initializedWith(MongosArguments.defaults().withConfigDB(configDB)))
+				.walker().initState(StateID.of(RunningMongosProcess.class));
+		ServerAddress routerAddress = router.current().getServerAddress();
+		mongo = MongoClients.create("mongodb://" + routerAddress);
+		mongo.getDatabase("admin").runCommand(new Document("addShard", "shard/" + shardServer.current().getServerAddress()));
+
+		System.setProperty("para.mongodb.port", "" + routerAddress.getPort());
+		System.setProperty("para.mongodb.sharding_enabled", "true");
+		System.setProperty("para.app_name", ROOT_APP_NAME);
+		System.setProperty("para.cluster_name", ROOT_APP_NAME);
+
+		MongoDBUtils.createTable(ROOT_APP_NAME);
+		MongoDBUtils.createTable(APPID);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		MongoDBUtils.deleteTable(APPID);
+		MongoDBUtils.deleteTable(ROOT_APP_NAME);
+		MongoDBUtils.shutdownClient();
+		System.clearProperty("para.mongodb.port");
+		System.clearProperty("para.mongodb.sharding_enabled");
+		System.clearProperty("para.app_name");
+		System.clearProperty("para.cluster_name");
+		mongo.close();
+		router.current().stop();
+		shardServer.current().stop();
+		configServer.current().stop();
+	}
+
+	@Test
+	public void testTablesAreSharded() {
+		String namespace = Para.getConfig().mongoDatabase() + "." + MongoDBUtils.getTableNameForAppid(APPID);
+		Document collection = mongo.getDatabase("config").getCollection("collections").
+				find(new Document("_id", namespace)).first();
+		assertNotNull(collection);
+		assertEquals("hashed", collection.get("key", Document.class).get("_id"));
+	}
+
+	@Test
+	public void testBigAppsArePresplit() {
+		String sharedApp = "sharedshards";
+		System.setProperty("para.mongodb.shard_key", "appid");
+		System.setProperty("para.mongodb.shard_big_apps", "bigapp1, bigapp2");
+		try {
+			assertTrue(MongoDBUtils.createTable(sharedApp));
+			String namespace = Para.getConfig().mongoDatabase() + "." + MongoDBUtils.getTableNameForAppid(sharedApp);
+			Document collection = mongo.getDatabase("config").getCollection("collections").
+					find(new Document("_id", namespace)).first();
+			assertNotNull(collection);
+			assertEquals(1, collection.get("key", Document.class).get("appid"));
+			// each big app starts on a chunk of its own
+			MongoCollection<Document> chunks = mongo.getDatabase("config").getCollection("chunks");
+			for (String app : List.of("bigapp1", "bigapp2")) {
+				Document chunk = chunks.find(new Document("uuid", collection.get("uuid")).
+						append("min", new Document("appid", app).append("_id", new MinKey()))).first();
+				assertNotNull(chunk);
+				assertEquals(new Document("appid", app).append("_id", new MaxKey()), chunk.get("max", Document.class));
+			}
+		} finally {
+			MongoDBUtils.deleteTable(sharedApp);
+			System.clearProperty("para.mongodb.shard_key");
+			System.clearProperty("para.mongodb.shard_big_apps");
+		}
+	}
+
+	@Test
+	public void testCrudOnShardedTable() {
+		MongoDBDAO dao = new MongoDBDAO();
+		List<Sysprop> objects = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			Sysprop s = new Sysprop("sharded_" + i);
+			s.setName("name" + i);
+			objects.add(s);
+			ids.add(s.getId());
+		}
+		dao.createAll(APPID, objects);
+		Map<String, Sysprop> read = dao.readAll(APPID, ids, true);
+		assertEquals(objects.size(), read.size());
+
+		objects.forEach(s -> s.setName("updated"));
+		dao.updateAll(APPID, objects);
+		assertEquals("updated", ((Sysprop) dao.read(APPID, ids.get(10))).getName());
+
+		dao.deleteAll(APPID, objects);
+		assertNull(dao.read(APPID, ids.get(0)));
+		assertTrue(dao.readAll(APPID, ids, true).isEmpty());
+	}
+
+	@Test
+	public void testKeyFilter() throws InterruptedException {
+		MongoDBDAO dao = new MongoDBDAO();
+		System.setProperty("para.mongodb.key_filter_enabled", "true");
+		try {
+			dao.create(APPID, new Sysprop("probed1"));
+			MongoDBKeyFilter.build(APPID);
+			// the cluster has change streams, so the filter answers a true miss without a query
+			assertFalse(MongoDBKeyFilter.mightContain(APPID, "probe_missing"));
+			assertNull(dao.probe(APPID, "probe_missing"));
+			assertNotNull(dao.probe(APPID, "probed1"));
+
+			// an object written by another client is added from the change stream
+			MongoCollection<Document> table = mongo.getDatabase(Para.getConfig().mongoDatabase()).
+					getCollection(MongoDBUtils.getTableNameForAppid(APPID));
+			Document row = table.find(new Document("_id", "probed1")).first();
+			row.put("_id", "probed2");
+			table.insertOne(row);
+			for (int i = 0; i < 100 && !MongoDBKeyFilter.mightContain(APPID, "probed2"); i++) {
+				Thread.sleep(100);
+			}
+			assertNotNull(dao.probe(APPID, "probed2"));
+			assertEquals(2, dao.probeAll(APPID, List.of("probed1", "probed2", "probe_missing")).size());
+		} finally {
+			System.clearProperty("para.mongodb.key_filter_enabled");
+			dao.deleteAll(APPID, List.of(new Sysprop("probed1"), new Sysprop("probed2")));
+		}
+	}
+
+	private static TransitionWalker.ReachedState<RunningMongodProcess> startReplicaSetMember(String replSetName,
+			boolean isConfigServer) throws InterruptedException {
+		MongodArguments args = MongodArguments.defaults().withReplication(Storage.of(replSetName, 0)).
+				withIsConfigServer(isConfigServer).withIsShardServer(!isConfigServer).withUseNoJournal(false);
+		TransitionWalker.ReachedState<RunningMongodProcess> running = Mongod.instance().
+				withMongodArguments(Start.to(MongodArguments.class).initializedWith(args)).start(Version.Main.V8_0);
+		ServerAddress address = running.current().getServerAddress();
+		try (MongoClient client = MongoClients.create("mongodb://" + address + "/?directConnection=true")) {
+			Document config = new Document("_id", replSetName).append("configsvr", isConfigServer).
+					append("members", List.of(new Document("_id", 0).append("host", address.toString())));
+			client.getDatabase("admin").runCommand(new Document("replSetInitiate", config));
+			for (int i = 0; i < 100; i++) {
+				if (client.getDatabase("admin").runCommand(new Document("hello", 1)).getBoolean("isWritablePrimary", false)) {
+					break;
+				}
+				Thread.sleep(200);
+			}
+		}
+		return running;
+	}
+}